@@ -0,0 +1,204 @@
+package edu.wcsu.wcsufs.Cache;
+
+import edu.wcsu.wcsufs.Devices.BlockDevice;
+import edu.wcsu.wcsufs.FSDataStructures.DataBlock;
+import edu.wcsu.wcsufs.FSDataStructures.DirectoryDataBlock;
+import edu.wcsu.wcsufs.FSDataStructures.ExtentBlock;
+import edu.wcsu.wcsufs.FSDataStructures.FSConstants;
+import edu.wcsu.wcsufs.FSDataStructures.IndirectPointerBlock;
+import edu.wcsu.wcsufs.Readers.ReadDataBlock;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A write-through cache of data blocks with a fixed byte budget.
+// The least recently used block is evicted first; pinned blocks are never evicted.
+public class BlockCache
+{
+  // Member data
+  private final BlockDevice      device;
+  private final int              addressOfFirstDataBlock;
+  private final int              maximumBlocks;
+
+  private final LinkedHashMap<Integer, DataBlock> blocks;
+  private final Map<Integer, Integer>             pinCounts;
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  public BlockCache( BlockDevice device, int addressOfFirstDataBlock, long capacityInBytes )
+  {
+    this.device                  = device;
+    this.addressOfFirstDataBlock = addressOfFirstDataBlock;
+    this.maximumBlocks           = (int)Math.max( 1, Math.min( Integer.MAX_VALUE, capacityInBytes / FSConstants.BLOCK_SIZE ) );
+
+    // Access order makes the iteration order least recently used first.
+    blocks    = new LinkedHashMap<>( 16, 0.75f, true );
+    pinCounts = new HashMap<>();
+
+    hits      = 0;
+    misses    = 0;
+    evictions = 0;
+  }
+
+  // Typed accessors. A cached block of a different kind is re-read from the file.
+  public DataBlock getDataBlock( int pointer ) throws IOException
+  {
+    DataBlock dataBlock = lookUp( pointer );
+    if( dataBlock == null )
+    {
+      dataBlock = load( pointer, new DataBlock() );
+    }
+    return dataBlock;
+  }
+
+  public DirectoryDataBlock getDirectoryBlock( int pointer ) throws IOException
+  {
+    DataBlock dataBlock = lookUp( pointer );
+    if( !( dataBlock instanceof DirectoryDataBlock ) )
+    {
+      dataBlock = load( pointer, new DirectoryDataBlock() );
+    }
+    return (DirectoryDataBlock)dataBlock;
+  }
+
+  public IndirectPointerBlock getIndirectPointerBlock( int pointer ) throws IOException
+  {
+    DataBlock dataBlock = lookUp( pointer );
+    if( !( dataBlock instanceof IndirectPointerBlock ) )
+    {
+      dataBlock = load( pointer, new IndirectPointerBlock( addressOfFirstDataBlock ) );
+    }
+    return (IndirectPointerBlock)dataBlock;
+  }
+
+  public ExtentBlock getExtentBlock( int pointer ) throws IOException
+  {
+    DataBlock dataBlock = lookUp( pointer );
+    if( !( dataBlock instanceof ExtentBlock ) )
+    {
+      dataBlock = load( pointer, new ExtentBlock() );
+    }
+    return (ExtentBlock)dataBlock;
+  }
+
+  // Add a block that was created in memory. The caller is responsible for writing it out.
+  public void put( int pointer, DataBlock dataBlock )
+  {
+    put( pointer, dataBlock, false );
+  }
+
+  // A block added pinned is pinned before anything is evicted to make room, so it cannot be the one that goes
+  public void put( int pointer, DataBlock dataBlock, boolean pinned )
+  {
+    blocks.put( pointer, dataBlock );
+    if( pinned )
+    {
+      pin( pointer );
+    }
+    evict();
+  }
+
+  public void invalidate( int pointer )
+  {
+    if( !pinCounts.containsKey( pointer ) )
+    {
+      blocks.remove( pointer );
+    }
+  }
+
+  // A pinned block stays in the cache until it has been unpinned as often as it was pinned.
+  public void pin( int pointer )
+  {
+    Integer pinCount = pinCounts.get( pointer );
+    pinCounts.put( pointer, pinCount == null ? 1 : pinCount + 1 );
+  }
+
+  public void unpin( int pointer )
+  {
+    Integer pinCount = pinCounts.get( pointer );
+    if( pinCount == null ) return;
+
+    if( pinCount <= 1 )
+    {
+      pinCounts.remove( pointer );
+      evict();
+    }
+    else
+    {
+      pinCounts.put( pointer, pinCount - 1 );
+    }
+  }
+
+  private DataBlock lookUp( int pointer )
+  {
+    DataBlock dataBlock = blocks.get( pointer );
+    if( dataBlock != null )
+    {
+      hits++;
+    }
+    else
+    {
+      misses++;
+    }
+    return dataBlock;
+  }
+
+  private DataBlock load( int pointer, DataBlock dataBlock ) throws IOException
+  {
+    ReadDataBlock.read( device, pointer, dataBlock );
+    put( pointer, dataBlock );
+    return dataBlock;
+  }
+
+  private void evict()
+  {
+    if( blocks.size() <= maximumBlocks ) return;
+
+    Iterator<Integer> pointers = blocks.keySet().iterator();
+    while( blocks.size() > maximumBlocks && pointers.hasNext() )
+    {
+      int pointer = pointers.next();
+      if( pinCounts.containsKey( pointer ) ) continue;
+
+      pointers.remove();
+      evictions++;
+    }
+  }
+
+  // Statistics
+  public long getHits()
+  {
+    return hits;
+  }
+
+  public long getMisses()
+  {
+    return misses;
+  }
+
+  public long getEvictions()
+  {
+    return evictions;
+  }
+
+  public int getNumberOfCachedBlocks()
+  {
+    return blocks.size();
+  }
+
+  public int getMaximumBlocks()
+  {
+    return maximumBlocks;
+  }
+
+  // Any further block would push another out
+  public boolean isFull()
+  {
+    return blocks.size() >= maximumBlocks;
+  }
+}
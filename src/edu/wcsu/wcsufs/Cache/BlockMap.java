@@ -0,0 +1,276 @@
+package edu.wcsu.wcsufs.Cache;
+
+import edu.wcsu.wcsufs.FSDataStructures.Extent;
+import edu.wcsu.wcsufs.FSDataStructures.ExtentBlock;
+import edu.wcsu.wcsufs.FSDataStructures.INode;
+import edu.wcsu.wcsufs.FSDataStructures.IndirectPointerBlock;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Walks and grows the block map of an INode: the direct pointers, then the blocks reached through
+// the single, double and triple indirect blocks, in that order. An extent-mapped INode instead has its extents,
+// followed by those in its chain of extent blocks. The indirect and extent blocks go through the cache.
+public class BlockMap
+{
+  // Constants
+  public static final int DATA_BLOCK = 0;
+
+  // Member data
+  private final BlockCache blockCache;
+  private final int        addressOfFirstDataBlock;
+
+  public interface Visitor
+  {
+    // The level is DATA_BLOCK for a block of the file itself, otherwise the depth of an indirect block (1 to 3).
+    // An extent block has level 1. Return false to stop the walk.
+    boolean visit( int pointer, int level ) throws IOException;
+  }
+
+  public interface ExtentVisitor
+  {
+    // Return false to stop the walk
+    boolean visit( Extent extent ) throws IOException;
+  }
+
+  public BlockMap( BlockCache blockCache, int addressOfFirstDataBlock )
+  {
+    this.blockCache              = blockCache;
+    this.addressOfFirstDataBlock = addressOfFirstDataBlock;
+  }
+
+  // Visit the data blocks of the file in order. Each indirect block is visited after the blocks it points to,
+  // so that it may be freed from the visitor. Pointers below the first data block are unset and skipped.
+  // Returns false if the visitor stopped the walk.
+  public boolean walk( INode inode, Visitor visitor ) throws IOException
+  {
+    if( inode.isExtentMapped() )
+    {
+      return walkExtentMap( inode, visitor );
+    }
+
+    for( int directPointer : inode.getDirectPointers() )
+    {
+      if( directPointer < addressOfFirstDataBlock ) continue;
+      if( !visitor.visit( directPointer, DATA_BLOCK ) ) return false;
+    }
+
+    return walkIndirect( inode.getIndirectPointer(), 1, visitor )
+        && walkIndirect( inode.getDoubleIndirectPointer(), 2, visitor )
+        && walkIndirect( inode.getTripleIndirectPointer(), 3, visitor );
+  }
+
+  private boolean walkIndirect( int pointer, int level, Visitor visitor ) throws IOException
+  {
+    if( pointer < addressOfFirstDataBlock ) return true;
+
+    IndirectPointerBlock indirectPointerBlock = blockCache.getIndirectPointerBlock( pointer );
+    for( int i = 0; i < indirectPointerBlock.getNumberOfPointers(); i++ )
+    {
+      int     childPointer = indirectPointerBlock.getPointer( i );
+      boolean keepGoing    = ( level == 1 ) ? visitor.visit( childPointer, DATA_BLOCK ) : walkIndirect( childPointer, level - 1, visitor );
+      if( !keepGoing ) return false;
+    }
+    return visitor.visit( pointer, level );
+  }
+
+  // Visit the data blocks of the file in order as runs of consecutive blocks: the extents themselves for
+  // an extent-mapped file, otherwise runs gathered from the block map. Returns false if the visitor stopped the walk.
+  public boolean walkExtents( INode inode, ExtentVisitor visitor ) throws IOException
+  {
+    if( inode.isExtentMapped() )
+    {
+      for( Extent extent : inode.getExtents() )
+      {
+        if( !visitor.visit( extent ) ) return false;
+      }
+      for( int pointer = inode.getExtentBlockPointer(); pointer >= addressOfFirstDataBlock; )
+      {
+        ExtentBlock extentBlock = blockCache.getExtentBlock( pointer );
+        for( Extent extent : extentBlock.getExtents() )
+        {
+          if( !visitor.visit( extent ) ) return false;
+        }
+        pointer = extentBlock.getNextExtentBlock();
+      }
+      return true;
+    }
+
+    // The start and length of the run so far
+    int[] run = { -1, 0 };
+    boolean finished = walk( inode, ( pointer, level ) ->
+    {
+      if( level != DATA_BLOCK ) return true;
+      if( run[1] > 0 && pointer == run[0] + run[1] )
+      {
+        run[1]++;
+        return true;
+      }
+
+      boolean keepGoing = ( run[1] == 0 ) || visitor.visit( new Extent( run[0], run[1] ) );
+      run[0] = pointer;
+      run[1] = 1;
+      return keepGoing;
+    } );
+    return finished && ( run[1] == 0 || visitor.visit( new Extent( run[0], run[1] ) ) );
+  }
+
+  // Each extent block is visited after its extents, and before the next block in the chain is read
+  private boolean walkExtentMap( INode inode, Visitor visitor ) throws IOException
+  {
+    for( Extent extent : inode.getExtents() )
+    {
+      if( !visitExtent( extent, visitor ) ) return false;
+    }
+
+    for( int pointer = inode.getExtentBlockPointer(); pointer >= addressOfFirstDataBlock; )
+    {
+      ExtentBlock extentBlock = blockCache.getExtentBlock( pointer );
+      for( Extent extent : extentBlock.getExtents() )
+      {
+        if( !visitExtent( extent, visitor ) ) return false;
+      }
+      if( !visitor.visit( pointer, 1 ) ) return false;
+      pointer = extentBlock.getNextExtentBlock();
+    }
+    return true;
+  }
+
+  private static boolean visitExtent( Extent extent, Visitor visitor ) throws IOException
+  {
+    for( int i = 0; i < extent.getLength(); i++ )
+    {
+      if( !visitor.visit( extent.getStart() + i, DATA_BLOCK ) ) return false;
+    }
+    return true;
+  }
+
+  // The number of indirect blocks needed to map a file of this many blocks
+  public static int getNumberOfIndirectBlocks( long numberOfFileBlocks )
+  {
+    long pointersPerBlock = IndirectPointerBlock.POINTERS_PER_BLOCK;
+    long remainingBlocks  = numberOfFileBlocks - INode.NUMBER_OF_DIRECT_POINTERS;
+    int  numberOfIndirectBlocks = 0;
+
+    // The single indirect level maps pointersPerBlock blocks, each further level pointersPerBlock times as many
+    long blocksPerLevel = pointersPerBlock;
+    for( int level = 1; level <= 3 && remainingBlocks > 0; level++ )
+    {
+      long blocksInLevel = Math.min( remainingBlocks, blocksPerLevel );
+
+      // An indirect block at the top of the level maps all of it, one a level further down a pointersPerBlock-th of that
+      long blocksPerIndirectBlock = blocksPerLevel;
+      for( int depth = 0; depth < level; depth++ )
+      {
+        numberOfIndirectBlocks += (int)( ( blocksInLevel + blocksPerIndirectBlock - 1 ) / blocksPerIndirectBlock );
+        blocksPerIndirectBlock /= pointersPerBlock;
+      }
+
+      remainingBlocks -= blocksInLevel;
+      blocksPerLevel  *= pointersPerBlock;
+    }
+    return numberOfIndirectBlocks;
+  }
+
+  // Add one data block to the end of a block-mapped INode that has numberOfFileBlocks blocks, such as a directory that grows.
+  // Any new indirect blocks come from indirectPointers; getNumberOfIndirectBlocks( numberOfFileBlocks + 1 )
+  // - getNumberOfIndirectBlocks( numberOfFileBlocks ) of them are needed. The indirect blocks that were created or changed
+  // are pinned in the cache and returned by pointer; the caller writes them out and unpins them.
+  public Map<Integer, IndirectPointerBlock> append( INode inode, long numberOfFileBlocks, int dataPointer, int[] indirectPointers ) throws IOException
+  {
+    Map<Integer, IndirectPointerBlock> changedIndirectBlocks = new LinkedHashMap<>();
+    if( numberOfFileBlocks < INode.NUMBER_OF_DIRECT_POINTERS )
+    {
+      inode.setDirectPointer( (int)numberOfFileBlocks, dataPointer );
+      return changedIndirectBlocks;
+    }
+
+    // Find the level the block goes in, and where it goes within that level
+    long index          = numberOfFileBlocks - INode.NUMBER_OF_DIRECT_POINTERS;
+    long blocksPerLevel = IndirectPointerBlock.POINTERS_PER_BLOCK;
+    int  level          = 1;
+    while( index >= blocksPerLevel )
+    {
+      index          -= blocksPerLevel;
+      blocksPerLevel *= IndirectPointerBlock.POINTERS_PER_BLOCK;
+      level++;
+    }
+    assert level <= 3;
+
+    int[] next = { 0 };   // the next indirect block
+    switch( level )
+    {
+      case 1:
+        inode.setIndirectPointer( appendIndirect( inode.getIndirectPointer(), 1, index, dataPointer, indirectPointers, next, changedIndirectBlocks ) );
+        break;
+      case 2:
+        inode.setDoubleIndirectPointer( appendIndirect( inode.getDoubleIndirectPointer(), 2, index, dataPointer, indirectPointers, next, changedIndirectBlocks ) );
+        break;
+      default:
+        inode.setTripleIndirectPointer( appendIndirect( inode.getTripleIndirectPointer(), 3, index, dataPointer, indirectPointers, next, changedIndirectBlocks ) );
+        break;
+    }
+    return changedIndirectBlocks;
+  }
+
+  // Add the data block at the given index of the blocks below an indirect block, which is a new one if the index is 0.
+  // Returns the pointer to the indirect block.
+  private int appendIndirect( int pointer, int level, long index, int dataPointer, int[] indirectPointers, int[] next,
+                              Map<Integer, IndirectPointerBlock> changedIndirectBlocks ) throws IOException
+  {
+    // Keep the block while the levels below it are read
+    IndirectPointerBlock indirectPointerBlock;
+    if( index == 0 )
+    {
+      pointer              = indirectPointers[ next[0]++ ];
+      indirectPointerBlock = new IndirectPointerBlock( addressOfFirstDataBlock );
+      blockCache.put( pointer, indirectPointerBlock, true );
+    }
+    else
+    {
+      indirectPointerBlock = blockCache.getIndirectPointerBlock( pointer );
+      blockCache.pin( pointer );
+    }
+
+    // Each pointer in the block maps this many data blocks
+    long blocksPerPointer = 1;
+    for( int depth = 1; depth < level; depth++ )
+    {
+      blocksPerPointer *= IndirectPointerBlock.POINTERS_PER_BLOCK;
+    }
+
+    boolean changed = true;
+    if( level == 1 )
+    {
+      indirectPointerBlock.addIndirectPointer( dataPointer );
+    }
+    else if( index % blocksPerPointer == 0 )
+    {
+      indirectPointerBlock.addIndirectPointer( appendIndirect( 0, level - 1, 0, dataPointer, indirectPointers, next, changedIndirectBlocks ) );
+    }
+    else
+    {
+      int childPointer = indirectPointerBlock.getPointer( (int)( index / blocksPerPointer ) );
+      appendIndirect( childPointer, level - 1, index % blocksPerPointer, dataPointer, indirectPointers, next, changedIndirectBlocks );
+      changed = false;
+    }
+
+    if( changed )
+    {
+      changedIndirectBlocks.put( pointer, indirectPointerBlock );
+    }
+    else
+    {
+      blockCache.unpin( pointer );
+    }
+    return pointer;
+  }
+
+  // The number of extent blocks needed for a file with this many extents
+  public static int getNumberOfExtentBlocks( int numberOfExtents )
+  {
+    int overflowExtents = Math.max( 0, numberOfExtents - INode.NUMBER_OF_INLINE_EXTENTS );
+    return ( overflowExtents + ExtentBlock.EXTENTS_PER_BLOCK - 1 ) / ExtentBlock.EXTENTS_PER_BLOCK;
+  }
+}
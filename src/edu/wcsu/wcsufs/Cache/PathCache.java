@@ -0,0 +1,180 @@
+package edu.wcsu.wcsufs.Cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// Caches the result of resolving a path from a starting directory, including paths that could not be resolved.
+// Each path remembers the directories it was looked up in, so that a change to one directory invalidates
+// exactly the paths that went through it. The least recently used path is dropped first.
+public class PathCache
+{
+  // Constants
+  // The INode number cached for a path that does not exist
+  public static final int NOT_FOUND = -1;
+
+  // Member data
+  private final int maximumPaths;
+
+  private final LinkedHashMap<Key, Resolution> paths;
+  private final Map<Integer, Set<Key>>         pathsByDirectory;
+
+  private long hits;
+  private long misses;
+  private long invalidations;
+
+  public PathCache( int maximumPaths )
+  {
+    this.maximumPaths = Math.max( 1, maximumPaths );
+
+    // Access order makes the iteration order least recently used first.
+    paths            = new LinkedHashMap<>( 16, 0.75f, true );
+    pathsByDirectory = new HashMap<>();
+
+    hits          = 0;
+    misses        = 0;
+    invalidations = 0;
+  }
+
+  // Returns the cached INode number, NOT_FOUND for a cached miss, or null if the path has not been cached.
+  public Integer get( int startingINodeNumber, String path )
+  {
+    Resolution resolution = paths.get( new Key( startingINodeNumber, path ) );
+    if( resolution == null )
+    {
+      misses++;
+      return null;
+    }
+    hits++;
+    return resolution.INodeNumber;
+  }
+
+  // The directories are every directory a component of the path was looked up in.
+  public void put( int startingINodeNumber, String path, int INodeNumber, int[] directories )
+  {
+    Key key = new Key( startingINodeNumber, path );
+    remove( key );
+
+    paths.put( key, new Resolution( INodeNumber, directories ) );
+    for( int directory : directories )
+    {
+      pathsByDirectory.computeIfAbsent( directory, d -> new HashSet<>() ).add( key );
+    }
+    evict();
+  }
+
+  // Called whenever an entry is added to or removed from a directory, or the directory itself is removed.
+  public void invalidateDirectory( int directoryINodeNumber )
+  {
+    Set<Key> keys = pathsByDirectory.remove( directoryINodeNumber );
+    if( keys == null ) return;
+
+    for( Key key : keys )
+    {
+      Resolution resolution = paths.remove( key );
+      if( resolution == null ) continue;
+
+      invalidations++;
+      unlink( key, resolution, directoryINodeNumber );
+    }
+  }
+
+  private void remove( Key key )
+  {
+    Resolution resolution = paths.remove( key );
+    if( resolution != null )
+    {
+      unlink( key, resolution, -1 );
+    }
+  }
+
+  // Remove the key from the reverse index of every directory it went through, except the one being invalidated.
+  private void unlink( Key key, Resolution resolution, int skippedDirectory )
+  {
+    for( int directory : resolution.directories )
+    {
+      if( directory == skippedDirectory ) continue;
+
+      Set<Key> keys = pathsByDirectory.get( directory );
+      if( keys == null ) continue;
+
+      keys.remove( key );
+      if( keys.isEmpty() ) pathsByDirectory.remove( directory );
+    }
+  }
+
+  private void evict()
+  {
+    Iterator<Map.Entry<Key, Resolution>> entries = paths.entrySet().iterator();
+    while( paths.size() > maximumPaths && entries.hasNext() )
+    {
+      Map.Entry<Key, Resolution> eldest = entries.next();
+      entries.remove();
+      unlink( eldest.getKey(), eldest.getValue(), -1 );
+    }
+  }
+
+  // Statistics
+  public long getHits()
+  {
+    return hits;
+  }
+
+  public long getMisses()
+  {
+    return misses;
+  }
+
+  public long getInvalidations()
+  {
+    return invalidations;
+  }
+
+  public int getNumberOfCachedPaths()
+  {
+    return paths.size();
+  }
+
+  private static class Key
+  {
+    // Member data
+    private final int    startingINodeNumber;
+    private final String path;
+
+    Key( int startingINodeNumber, String path )
+    {
+      this.startingINodeNumber = startingINodeNumber;
+      this.path                = path;
+    }
+
+    @Override
+    public boolean equals( Object other )
+    {
+      if( !( other instanceof Key ) ) return false;
+      Key otherKey = (Key)other;
+      return startingINodeNumber == otherKey.startingINodeNumber && path.equals( otherKey.path );
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return 31 * startingINodeNumber + path.hashCode();
+    }
+  }
+
+  private static class Resolution
+  {
+    // Member data
+    private final int   INodeNumber;
+    private final int[] directories;
+
+    Resolution( int INodeNumber, int[] directories )
+    {
+      this.INodeNumber = INodeNumber;
+      this.directories = directories;
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package edu.wcsu.wcsufs.Devices;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+// Block-addressed access to the file holding a WCSU file system.
+// All transfers are positional: there is no shared file pointer.
+public interface BlockDevice
+{
+  // Transfer buffer.remaining() bytes starting at the beginning of the given block
+  void readBlock( int blockNumber, ByteBuffer buffer ) throws IOException;
+
+  void writeBlock( int blockNumber, ByteBuffer buffer ) throws IOException;
+
+  // Transfer buffer.remaining() bytes starting at the given byte offset
+  void read( long offset, ByteBuffer buffer ) throws IOException;
+
+  void write( long offset, ByteBuffer buffer ) throws IOException;
+
+  // Copy length bytes starting at the given byte offset straight to the target, without going through a buffer of ours
+  void transferTo( long offset, long length, WritableByteChannel target ) throws IOException;
+
+  long getSize();
+
+  // Make sure everything written so far has reached the underlying file
+  void force() throws IOException;
+
+  void close() throws IOException;
+}
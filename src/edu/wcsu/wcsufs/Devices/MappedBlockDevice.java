@@ -0,0 +1,144 @@
+package edu.wcsu.wcsufs.Devices;
+
+import edu.wcsu.wcsufs.FSDataStructures.FSConstants;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+// A BlockDevice that maps the whole file into memory, so that reads and writes are plain memory copies.
+// A single mapping is limited to 2 GB, so the file is mapped in segments.
+public class MappedBlockDevice implements BlockDevice
+{
+  // Constants
+  // This must be a multiple of the block size.
+  public static final long SEGMENT_SIZE = 1L << 30;
+
+  // Member data
+  private final RandomAccessFile   file;
+  private final FileChannel        channel;
+  private final MappedByteBuffer[] segments;
+  private final long               size;
+
+  public MappedBlockDevice( File file ) throws IOException
+  {
+    this.file = new RandomAccessFile( file, "rw" );
+    channel   = this.file.getChannel();
+    size      = channel.size();
+
+    int numberOfSegments = (int)( ( size + SEGMENT_SIZE - 1 ) / SEGMENT_SIZE );
+    segments = new MappedByteBuffer[ numberOfSegments ];
+    for( int i = 0; i < numberOfSegments; i++ )
+    {
+      long position = i * SEGMENT_SIZE;
+      segments[i] = channel.map( FileChannel.MapMode.READ_WRITE, position, Math.min( SEGMENT_SIZE, size - position ) );
+    }
+  }
+
+  @Override
+  public void readBlock( int blockNumber, ByteBuffer buffer ) throws IOException
+  {
+    read( (long)blockNumber * FSConstants.BLOCK_SIZE, buffer );
+  }
+
+  @Override
+  public void writeBlock( int blockNumber, ByteBuffer buffer ) throws IOException
+  {
+    write( (long)blockNumber * FSConstants.BLOCK_SIZE, buffer );
+  }
+
+  @Override
+  public void read( long offset, ByteBuffer buffer ) throws IOException
+  {
+    checkRange( offset, buffer.remaining() );
+    while( buffer.hasRemaining() )
+    {
+      ByteBuffer segment = segmentAt( offset, buffer.remaining() );
+      offset += segment.remaining();
+      buffer.put( segment );
+    }
+  }
+
+  @Override
+  public void write( long offset, ByteBuffer buffer ) throws IOException
+  {
+    checkRange( offset, buffer.remaining() );
+    while( buffer.hasRemaining() )
+    {
+      ByteBuffer segment = segmentAt( offset, buffer.remaining() );
+      offset += segment.remaining();
+
+      // Only copy as much as fits in this segment
+      int limit = buffer.limit();
+      buffer.limit( buffer.position() + segment.remaining() );
+      segment.put( buffer );
+      buffer.limit( limit );
+    }
+  }
+
+  @Override
+  public void transferTo( long offset, long length, WritableByteChannel target ) throws IOException
+  {
+    checkRange( offset, length );
+
+    // The channel sees the same pages as the mapping, and can hand them to the target directly.
+    while( length > 0 )
+    {
+      long transferred = channel.transferTo( offset, length, target );
+      if( transferred <= 0 )
+      {
+        throw new EOFException( "Could not transfer " + length + " bytes at offset " + offset );
+      }
+      offset += transferred;
+      length -= transferred;
+    }
+  }
+
+  @Override
+  public long getSize()
+  {
+    return size;
+  }
+
+  @Override
+  public void force() throws IOException
+  {
+    for( MappedByteBuffer segment : segments )
+    {
+      segment.force();
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    force();
+    channel.close();
+    file.close();
+  }
+
+  // Returns a view of the mapped memory starting at offset, holding at most length bytes and not crossing a segment.
+  private ByteBuffer segmentAt( long offset, int length )
+  {
+    int segmentNumber = (int)( offset / SEGMENT_SIZE );
+    int segmentOffset = (int)( offset % SEGMENT_SIZE );
+
+    ByteBuffer segment = segments[ segmentNumber ].duplicate();
+    segment.position( segmentOffset );
+    segment.limit( (int)Math.min( segment.capacity(), (long)segmentOffset + length ) );
+    return segment;
+  }
+
+  private void checkRange( long offset, long length ) throws IOException
+  {
+    if( offset < 0 || offset + length > size )
+    {
+      throw new EOFException( "Cannot access " + length + " bytes at offset " + offset + " of a " + size + " byte device" );
+    }
+  }
+}
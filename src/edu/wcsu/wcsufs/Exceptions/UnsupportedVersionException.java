@@ -0,0 +1,9 @@
+package edu.wcsu.wcsufs.Exceptions;
+
+public class UnsupportedVersionException extends Exception
+{
+  public UnsupportedVersionException( String message )
+  {
+    super( message );
+  }
+}
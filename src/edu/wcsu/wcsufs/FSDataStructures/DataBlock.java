@@ -1,9 +1,11 @@
 package edu.wcsu.wcsufs.FSDataStructures;
 
+import java.util.Arrays;
+
 public class DataBlock
 {
   // Member variables
-  byte[] data;
+  final byte[] data;
 
   public DataBlock()
   {
@@ -12,8 +14,21 @@ public class DataBlock
 
   public void setData( byte[] newData )
   {
-    this.data = new byte[ newData.length ];
-    System.arraycopy( newData, 0, data, 0, newData.length );
+    int length = Math.min( newData.length, data.length );
+    System.arraycopy( newData, 0, data, 0, length );
+    Arrays.fill( data, length, data.length, (byte)0 );
+    parseData();
+  }
+
+  // The block's own bytes, for a block to be read straight into; parseData() must be called once they are filled in
+  public byte[] getBuffer()
+  {
+    return data;
+  }
+
+  // Bring the rest of the block up to date with its bytes. A plain data block has nothing else to update.
+  public void parseData()
+  {
   }
 
   public byte[] getData()
@@ -1,289 +1,296 @@
 package edu.wcsu.wcsufs.FSDataStructures;
 
 import edu.wcsu.wcsufs.Exceptions.CreateDirectoryEntryException;
-import edu.wcsu.wcsufs.Exceptions.DirectoryEmptyException;
 import edu.wcsu.wcsufs.Exceptions.DirectoryEntryNotFoundException;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-
+import java.util.Arrays;
+
+// A block of directory entries, read and written in place in the block itself; an entry is known by its offset.
+// Each record holds the INode number, the record length and the name length, followed by the name and
+// its terminating '\0', padded to a multiple of 4. The records follow each other from the start of the block,
+// and a record length of 0 ends them. A record with a negative INode number is not in use.
+// As in ext2, a record may be longer than its name needs: the slack is free space, left behind by removed records,
+// that a new entry can be split off into.
 public class DirectoryDataBlock extends DataBlock
 {
+  // Constants
+  public static final int INODE_NUMBER_BYTES  = 4;
+  public static final int RECORD_LENGTH_BYTES = 2;
+  public static final int NAME_LENGTH_BYTES   = 2;
+  public static final int HEADER_BYTES        = INODE_NUMBER_BYTES + RECORD_LENGTH_BYTES + NAME_LENGTH_BYTES;
+
+  // Returned by the entry lookups when there is no such entry
+  public static final int NO_ENTRY = -1;
+
   // Member data
+  private final ByteBuffer view;
+
+  // The end of the last record, which is where a new record goes if none has room for it
   private int allocatedBytes;
-  private ArrayList<DirectoryEntry> directoryEntries;
 
+  // The bytes from dirtyStart up to dirtyEnd have changed since the block was last written
+  private int dirtyStart;
+  private int dirtyEnd;
+
+  // A new block has never been written, so all of it is dirty
   public DirectoryDataBlock()
   {
-    allocatedBytes   = 0;
-    directoryEntries = null;
+    view           = ByteBuffer.wrap( data );
+    allocatedBytes = 0;
+    dirtyStart     = 0;
+    dirtyEnd       = FSConstants.BLOCK_SIZE;
   }
 
   @Override
-  public void setData( byte[] data )
+  public void parseData()
   {
-    // First set the data in the block
-    super.setData( data );
-
-    // Now parse it into Directory Entry blocks
+    // Find the end of the records. The last one may run right up to the end of the block.
     int offset = 0;
-    while( offset < FSConstants.BLOCK_SIZE )
+    while( offset + HEADER_BYTES <= FSConstants.BLOCK_SIZE )
     {
-      int offsetSave = offset;
-
-      // Get the INode number
-      int INodeNumber = ByteBuffer.wrap( data, offset, DirectoryEntry.INODE_NUMBER_BYTES ).getInt();
-      offset += DirectoryEntry.INODE_NUMBER_BYTES;
-
-      // Get the record length
-      short recordLength = ByteBuffer.wrap( data, offset, DirectoryEntry.RECORD_LENGTH_BYTES ).getShort();
-      offset += DirectoryEntry.RECORD_LENGTH_BYTES;
-
-      // Check if this record has been deallocated
-      if( INodeNumber < 0 )
-      {
-        // Need to skip this record
-        offset += recordLength;
-        continue;
-      }
-
-      // Check if this is just blank space
-      if( recordLength == 0 )
-      {
-        break;
-      }
-
-      // Get the name length
-      short nameLength = ByteBuffer.wrap( data, offset, DirectoryEntry.NAME_LENGTH_BYTES ).getShort();
-      offset += DirectoryEntry.NAME_LENGTH_BYTES;
-
-      // Get the actual name
-      byte[] nameBytes = new byte[ nameLength ];
-      System.arraycopy( data, offset, nameBytes, 0, nameLength - 1 );
-      nameBytes[ nameBytes.length - 1 ] = '\0';
-      String fileName = new String( nameBytes );
+      int recordLength = getRecordLength( offset );
+      if( recordLength < HEADER_BYTES || offset + recordLength > FSConstants.BLOCK_SIZE ) break;
 
       /*
-      System.out.println( "DirectoryDataBlock: Recreating entry " + fileName + "( "+ INodeNumber + " )"
-             + ", nameLength = " + nameLength + ", recordLength = " + recordLength );
+      System.out.println( "DirectoryDataBlock: found entry " + getName( offset ) + "( "+ getINodeNumber( offset ) + " )"
+             + ", nameLength = " + getNameLength( offset ) + ", recordLength = " + recordLength );
              */
-      DirectoryEntry newDirectoryEntry = new DirectoryEntry( INodeNumber, fileName );
-      if( directoryEntries == null )
-      {
-        directoryEntries = new ArrayList<>();
-      }
-      directoryEntries.add( newDirectoryEntry );
-
-      // That's it for this one
-      offset = offsetSave + recordLength;
+      offset += recordLength;
     }
+    allocatedBytes = offset;
+    clearDirty();
   }
 
+  // The block is always up to date
   @Override
   public byte[] getData()
   {
-    // Check if there are any directory entries --- there always should be at least one.
-    if( directoryEntries == null || directoryEntries.size() == 0 )
+    return data;
+  }
+
+  public boolean createDirectoryEntry( int INodeNumber, String name ) throws CreateDirectoryEntryException
+  {
+    // Sanity check: make sure the name is not already in use
+    byte[] nameBytes = getNameBytes( name );
+    if( findDirectoryEntry( nameBytes ) != NO_ENTRY )
     {
-      return data;
+      throw new CreateDirectoryEntryException( "The name " + name + " is already in use" );
     }
 
-    int remainingBytes = FSConstants.BLOCK_SIZE;
-    allocatedBytes = 0;
-
-    // Now loop over the directory entries, writing them in compressed fashion to the data block.
-    int dataOffset = 0;
-    for( DirectoryEntry directoryEntry : directoryEntries )
+    // First fit: an unused record that is long enough, or enough slack at the end of a record in use
+    int recordLength = getRecordLengthFor( nameBytes.length );
+    for( int offset = 0; offset < allocatedBytes; offset += getRecordLength( offset ) )
     {
-      int    inodeNumber  = directoryEntry.getINodeNumber();
-      int    recordLength = directoryEntry.getRecordLength();
-      int    nameLength   = directoryEntry.getNameLength();
-      String name         = directoryEntry.getName();
-      int padding = recordLength -
-          (     DirectoryEntry.INODE_NUMBER_BYTES
-              + DirectoryEntry.RECORD_LENGTH_BYTES
-              + DirectoryEntry.NAME_LENGTH_BYTES
-              + nameLength );
+      int usedLength = ( getINodeNumber( offset ) >= 0 ) ? getRecordLengthFor( getNameLength( offset ) - 1 ) : 0;
+      int slack      = getRecordLength( offset ) - usedLength;
+      if( slack < recordLength ) continue;
 
-      /*
-      System.out.println( "DirectoryDataBlock: writing out entry: " );
-      System.out.println( "\tname = " + name );
-      System.out.println( "\tINodeNumber = " + inodeNumber );
-      System.out.println( "\tnameLength = " + nameLength );
-      System.out.println( "\trecordLength = " + recordLength );
-      System.out.println( "\tpadding = " + padding );
-      */
-
-      // Write out the INode number
-      byte[] temp = ByteBuffer.allocate(DirectoryEntry.INODE_NUMBER_BYTES ).putInt( inodeNumber ).array();
-      System.arraycopy( temp,0, data, dataOffset, DirectoryEntry.INODE_NUMBER_BYTES );
-      dataOffset +=  DirectoryEntry.INODE_NUMBER_BYTES;
-
-      // Write out the Record Length
-      temp = ByteBuffer.allocate(DirectoryEntry.RECORD_LENGTH_BYTES ).putShort( (short)recordLength ).array();
-      System.arraycopy( temp, 0, data, dataOffset,  DirectoryEntry.RECORD_LENGTH_BYTES );
-      dataOffset +=  DirectoryEntry.RECORD_LENGTH_BYTES;
-
-      // Write out the name length
-      temp = ByteBuffer.allocate(DirectoryEntry.NAME_LENGTH_BYTES).putShort( (short)nameLength ).array();
-      System.arraycopy( temp, 0,  data, dataOffset, DirectoryEntry.NAME_LENGTH_BYTES );
-      dataOffset +=  DirectoryEntry.NAME_LENGTH_BYTES;
-
-      // Write out the name
-      temp = name.getBytes();
-      System.arraycopy( temp, 0, data, dataOffset,  temp.length);
-      dataOffset +=  temp.length;
-
-      // Write out a terminating '\0' if needed
-      if( !name.endsWith( "\0" ) )
+      // The new record takes over the slack, and the record in use, if any, keeps only what it needs
+      if( usedLength > 0 )
       {
-        temp = new byte[1];
-        temp[0] = '\0';
-        System.arraycopy( temp, 0, data, dataOffset, 1 );
-        dataOffset += 1;
+        setRecordLength( offset, usedLength );
       }
-      // Now any additional padding needed.
-      temp = new byte[  padding ];
-      System.arraycopy( temp, 0, data, dataOffset,  padding );
-      dataOffset += padding;
-
-      // Keep track of the number of allocated bytes
-      allocatedBytes += recordLength;
-
-      // Decrease the remaining bytes by the length of this record.
-      remainingBytes -= recordLength;
+      writeRecord( offset + usedLength, INodeNumber, slack, nameBytes );
+      markDirty( offset, offset + usedLength + recordLength );
+      return true;
     }
 
-
-    // See if there are any remaining bytes
-    if( remainingBytes > 0 )
+    // Otherwise after the last record, if there is room
+    if( allocatedBytes + recordLength > FSConstants.BLOCK_SIZE )
     {
-      byte[] filler = new byte[ remainingBytes ];
-      System.arraycopy( filler, 0, data, dataOffset, remainingBytes );
+      return false;
     }
+    writeRecord( allocatedBytes, INodeNumber, recordLength, nameBytes );
+    markDirty( allocatedBytes, allocatedBytes + recordLength );
+    allocatedBytes += recordLength;
+    return true;
+  }
 
-    return data;
+  // The length of the longest record createDirectoryEntry could still fit in: the most slack in any record,
+  // or the room after the last one
+  public int getLargestFreeSpace()
+  {
+    int largestFreeSpace = FSConstants.BLOCK_SIZE - allocatedBytes;
+    for( int offset = 0; offset < allocatedBytes; offset += getRecordLength( offset ) )
+    {
+      int usedLength = ( getINodeNumber( offset ) >= 0 ) ? getRecordLengthFor( getNameLength( offset ) - 1 ) : 0;
+      largestFreeSpace = Math.max( largestFreeSpace, getRecordLength( offset ) - usedLength );
+    }
+    return largestFreeSpace;
   }
 
-  public boolean createDirectoryEntry( int INodeNumber, String name ) throws CreateDirectoryEntryException
+  // Merge the record into the one before it. The first record in the block has nothing before it, so it is marked as unused.
+  public void removeDirectoryEntry( String name ) throws DirectoryEntryNotFoundException
   {
-    // Sanity check: make sure the name is not already in use
-    if( directoryEntries != null )
+    int offset = findDirectoryEntry( name );
+    if( offset == NO_ENTRY )
     {
-      for( DirectoryEntry currentEntry : directoryEntries )
-      {
-        if( currentEntry.getName().equals( name ) )
-        {
-          throw new CreateDirectoryEntryException( "The name " + name + " is already in use" );
-        }
-      }
+      throw new DirectoryEntryNotFoundException( "Could not find an entry for " + name );
     }
 
-    DirectoryEntry newEntry = new DirectoryEntry( INodeNumber, name );
+    int previousOffset = NO_ENTRY;
+    for( int recordOffset = 0; recordOffset < offset; recordOffset += getRecordLength( recordOffset ) )
+    {
+      previousOffset = recordOffset;
+    }
 
-    //  Check the total size of the record
-    if( newEntry.getRecordLength() + allocatedBytes < FSConstants.BLOCK_SIZE )
+    if( previousOffset == NO_ENTRY )
     {
-      // Add the entry to the list and update the number of allocated bytes
-      if( directoryEntries == null ) directoryEntries = new ArrayList<>();
-      directoryEntries.add( newEntry );
-      allocatedBytes += newEntry.getRecordLength();
-      return true;
+      view.putInt( offset, -1 );
+      markDirty( offset, offset + INODE_NUMBER_BYTES );
     }
     else
     {
-      return false;
+      setRecordLength( previousOffset, getRecordLength( previousOffset ) + getRecordLength( offset ) );
+      markDirty( previousOffset + INODE_NUMBER_BYTES, previousOffset + INODE_NUMBER_BYTES + RECORD_LENGTH_BYTES );
     }
   }
 
-  public void removeDirectoryEntry( String name ) throws DirectoryEmptyException, DirectoryEntryNotFoundException
+  // The name is followed by its terminating '\0' and zeros up to the length the name needs; the rest of the record is slack.
+  private void writeRecord( int offset, int INodeNumber, int recordLength, byte[] nameBytes )
   {
-    //System.out.println( "DirectoryDataBlock: removeDirectoryEntry: directoryEntries = " + directoryEntries );
-    if( directoryEntries == null || directoryEntries.size() <= 1 )
-    {
-      throw new DirectoryEmptyException( "The current directory is empty" );
-    }
+    view.putInt( offset, INodeNumber );
+    setRecordLength( offset, recordLength );
+    view.putShort( offset + INODE_NUMBER_BYTES + RECORD_LENGTH_BYTES, (short)( nameBytes.length + 1 ) );
+    System.arraycopy( nameBytes, 0, data, offset + HEADER_BYTES, nameBytes.length );
+    Arrays.fill( data, offset + HEADER_BYTES + nameBytes.length, offset + getRecordLengthFor( nameBytes.length ), (byte)0 );
+  }
 
-    boolean entryFound = false;
-    for( int i = 0; i < directoryEntries.size(); i++ )
-    {
-      DirectoryEntry currentEntry = directoryEntries.get( i );
-      if( currentEntry.getName().trim().equals( name ) )
-      {
-        allocatedBytes -= currentEntry.getRecordLength();
-        directoryEntries.remove( i );
-        entryFound = true;
-        break;
-      }
-    }
-    if( !entryFound )
-    {
-      throw new DirectoryEntryNotFoundException( "Could not find an entry for " + name );
-    }
+  private void setRecordLength( int offset, int recordLength )
+  {
+    view.putShort( offset + INODE_NUMBER_BYTES, (short)recordLength );
   }
 
-  public ArrayList<DirectoryEntry> getDirectoryEntries()
+  // Dirty tracking, in bytes of the block
+  public boolean isDirty()
   {
-    return directoryEntries;
+    return dirtyStart < dirtyEnd;
   }
 
-  public static class DirectoryEntry
+  public int getDirtyStart()
   {
-    // Member data
-    private int    INodeNumber;
-    private int    recordLength;
-    private int    nameLength;
-    private String name;
-
-    // Constants
-    public static final int INODE_NUMBER_BYTES  = 4;
-    public static final int RECORD_LENGTH_BYTES = 2;
-    public static final int NAME_LENGTH_BYTES   = 2;
-
-    // Constructor
-    public DirectoryEntry( int INodeNumber, String name )
-    {
-      this.INodeNumber = INodeNumber;
-      this.name        = name;
-      this.nameLength  = name.length();
-      if( !name.endsWith( "\0" ))
-      {
-        this.nameLength += 1;// Need to remember to allocate space for the '\0'
-      }
-      //System.out.println( "DirectoryEntry: namelength = " + nameLength + " for " + name );
-      // Compute the space needed for the name, rounded up to the nearest 4
-      int spaceForName =  ((4 + nameLength - 1)/ 4) * 4;
-      this.recordLength = INODE_NUMBER_BYTES + RECORD_LENGTH_BYTES + NAME_LENGTH_BYTES + spaceForName;
-    }
+    return dirtyStart;
+  }
 
-    // Accessors
-    public int getINodeNumber()
-    {
-      return INodeNumber;
-    }
+  public int getDirtyEnd()
+  {
+    return dirtyEnd;
+  }
+
+  // Called once the block has been written out
+  public void clearDirty()
+  {
+    dirtyStart = FSConstants.BLOCK_SIZE;
+    dirtyEnd   = 0;
+  }
+
+  private void markDirty( int start, int end )
+  {
+    dirtyStart = Math.min( dirtyStart, start );
+    dirtyEnd   = Math.max( dirtyEnd, end );
+  }
+
+  // Returns the offset of the entry with the given name, or NO_ENTRY if there is none in this block
+  public int findDirectoryEntry( String name )
+  {
+    return findDirectoryEntry( getNameBytes( name ) );
+  }
 
-    public int getRecordLength()
+  private int findDirectoryEntry( byte[] nameBytes )
+  {
+    for( int offset = getFirstEntry(); offset != NO_ENTRY; offset = getNextEntry( offset ) )
     {
-      return recordLength;
+      if( nameEquals( offset, nameBytes ) ) return offset;
     }
+    return NO_ENTRY;
+  }
+
+  // Iterating over the entries in use: getFirstEntry, then getNextEntry until NO_ENTRY
+  public int getFirstEntry()
+  {
+    return skipUnusedRecords( 0 );
+  }
+
+  public int getNextEntry( int offset )
+  {
+    return skipUnusedRecords( offset + getRecordLength( offset ) );
+  }
 
-    public int getNameLength()
+  private int skipUnusedRecords( int offset )
+  {
+    while( offset < allocatedBytes )
     {
-      return nameLength;
+      if( getINodeNumber( offset ) >= 0 ) return offset;
+      offset += getRecordLength( offset );
     }
+    return NO_ENTRY;
+  }
 
-    public String getName()
+  public int getNumberOfEntries()
+  {
+    int numberOfEntries = 0;
+    for( int offset = getFirstEntry(); offset != NO_ENTRY; offset = getNextEntry( offset ) )
     {
-      return name;
+      numberOfEntries++;
     }
+    return numberOfEntries;
+  }
+
+  // The fields of the entry at the given offset
+  public int getINodeNumber( int offset )
+  {
+    return view.getInt( offset );
+  }
+
+  public int getRecordLength( int offset )
+  {
+    return view.getShort( offset + INODE_NUMBER_BYTES ) & 0xffff;
+  }
+
+  // Including the terminating '\0'
+  public int getNameLength( int offset )
+  {
+    return view.getShort( offset + INODE_NUMBER_BYTES + RECORD_LENGTH_BYTES ) & 0xffff;
+  }
 
-    public void setName( String name )
+  // Without the terminating '\0'
+  public String getName( int offset )
+  {
+    return new String( data, offset + HEADER_BYTES, Math.max( 0, getNameLength( offset ) - 1 ) );
+  }
+
+  // Compares the name with the raw bytes of the entry
+  public boolean nameEquals( int offset, byte[] nameBytes )
+  {
+    if( getNameLength( offset ) != nameBytes.length + 1 ) return false;
+
+    int nameStart = offset + HEADER_BYTES;
+    for( int i = 0; i < nameBytes.length; i++ )
     {
-      this.name = name;
-      this.nameLength  = name.length() + 1; // Need to remember to allocate space for the '\0'
-      // Compute the space needed for the name, rounded up to the nearest 4
-      int spaceForName =  ((4 + nameLength - 1)/ 4) * 4;
-      this.recordLength = INODE_NUMBER_BYTES + RECORD_LENGTH_BYTES + NAME_LENGTH_BYTES + spaceForName;
+      if( data[ nameStart + i ] != nameBytes[i] ) return false;
     }
+    return true;
+  }
+
+  // True for the . and .. entries
+  public boolean isDotEntry( int offset )
+  {
+    int nameLength = getNameLength( offset );
+    int nameStart  = offset + HEADER_BYTES;
+    return ( nameLength == 2 && data[ nameStart ] == '.' )
+        || ( nameLength == 3 && data[ nameStart ] == '.' && data[ nameStart + 1 ] == '.' );
+  }
+
+  // Names are stored without surrounding white space or a terminating '\0'; trim removes both.
+  public static byte[] getNameBytes( String name )
+  {
+    return name.trim().getBytes();
+  }
+
+  // The header and the name with its '\0', rounded up to a multiple of 4
+  public static int getRecordLengthFor( int nameLength )
+  {
+    return HEADER_BYTES + ( ( nameLength + 1 + 3 ) / 4 ) * 4;
   }
 }
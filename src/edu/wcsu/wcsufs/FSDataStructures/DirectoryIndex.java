@@ -0,0 +1,131 @@
+package edu.wcsu.wcsufs.FSDataStructures;
+
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+// An in-memory index of all the entries of one directory, across all of its data blocks.
+// Each name maps to the INode it refers to and to the directory data block that holds the entry,
+// so that a lookup or a removal does not need to scan the blocks of the directory.
+// Names are kept without the terminating '\0'.
+// The index also keeps the data blocks of the directory by the longest record that still fits in each,
+// so that a new entry goes straight to the block with the least room that is still enough for it.
+public class DirectoryIndex
+{
+  // Member data
+  private final int                            INodeNumber;
+  private final HashMap<String, Entry>         entries;
+  private final HashMap<Integer, Integer>      freeSpace;           // by block pointer
+  private final TreeMap<Integer, Set<Integer>> blocksByFreeSpace;   // the block pointers with each amount of free space
+  private int                                  lastBlockPointer;
+
+  public DirectoryIndex( int INodeNumber )
+  {
+    this.INodeNumber  = INodeNumber;
+    entries           = new HashMap<>();
+    freeSpace         = new HashMap<>();
+    blocksByFreeSpace = new TreeMap<>();
+    lastBlockPointer  = -1;
+  }
+
+  public int getINodeNumber()
+  {
+    return INodeNumber;
+  }
+
+  public void addEntry( String name, int INodeNumber, int blockPointer )
+  {
+    entries.put( name.trim(), new Entry( INodeNumber, blockPointer ) );
+  }
+
+  // Returns null if there is no entry with this name
+  public Entry getEntry( String name )
+  {
+    return entries.get( name.trim() );
+  }
+
+  public void removeEntry( String name )
+  {
+    entries.remove( name.trim() );
+  }
+
+  public int getNumberOfEntries()
+  {
+    return entries.size();
+  }
+
+  // Blocks are added in the order the directory maps them
+  public void addBlock( int blockPointer, int largestFreeSpace )
+  {
+    setFreeSpace( blockPointer, largestFreeSpace );
+    lastBlockPointer = blockPointer;
+  }
+
+  public void setFreeSpace( int blockPointer, int largestFreeSpace )
+  {
+    Integer previousFreeSpace = freeSpace.put( blockPointer, largestFreeSpace );
+    if( previousFreeSpace != null )
+    {
+      if( previousFreeSpace == largestFreeSpace ) return;
+
+      Set<Integer> blocks = blocksByFreeSpace.get( previousFreeSpace );
+      blocks.remove( blockPointer );
+      if( blocks.isEmpty() )
+      {
+        blocksByFreeSpace.remove( previousFreeSpace );
+      }
+    }
+
+    Set<Integer> blocks = blocksByFreeSpace.get( largestFreeSpace );
+    if( blocks == null )
+    {
+      blocks = new LinkedHashSet<>();
+      blocksByFreeSpace.put( largestFreeSpace, blocks );
+    }
+    blocks.add( blockPointer );
+  }
+
+  // Returns the block with the least room that still fits a record of this length, or -1 if they are all too full
+  public int findBlockWithSpace( int recordLength )
+  {
+    Map.Entry<Integer, Set<Integer>> blocks = blocksByFreeSpace.ceilingEntry( recordLength );
+    return ( blocks == null ) ? -1 : blocks.getValue().iterator().next();
+  }
+
+  public int getNumberOfBlocks()
+  {
+    return freeSpace.size();
+  }
+
+  // -1 if the directory has no blocks
+  public int getLastBlock()
+  {
+    return lastBlockPointer;
+  }
+
+  public static class Entry
+  {
+    // Member data
+    private final int INodeNumber;
+    private final int blockPointer;
+
+    public Entry( int INodeNumber, int blockPointer )
+    {
+      this.INodeNumber  = INodeNumber;
+      this.blockPointer = blockPointer;
+    }
+
+    // Accessors
+    public int getINodeNumber()
+    {
+      return INodeNumber;
+    }
+
+    public int getBlockPointer()
+    {
+      return blockPointer;
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package edu.wcsu.wcsufs.FSDataStructures;
+
+// A run of consecutive blocks on disk, given by the address of the first block and the number of blocks
+public class Extent
+{
+  // Constants
+  // On disk an extent is the start followed by the length, both as ints
+  public static final int BYTES_PER_EXTENT = 8;
+
+  // Member data
+  private final int start;
+  private final int length;
+
+  public Extent( int start, int length )
+  {
+    this.start  = start;
+    this.length = length;
+  }
+
+  // Accessors
+  public int getStart()
+  {
+    return start;
+  }
+
+  public int getLength()
+  {
+    return length;
+  }
+
+  @Override
+  public String toString()
+  {
+    return start + "+" + length;
+  }
+}
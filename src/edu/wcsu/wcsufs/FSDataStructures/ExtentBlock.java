@@ -0,0 +1,81 @@
+package edu.wcsu.wcsufs.FSDataStructures;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// Holds the extents of a file that do not fit in its INode.
+// The block starts with the number of extents in it and the pointer to the next extent block, 0 if there is none,
+// followed by the extents themselves.
+public class ExtentBlock extends DataBlock
+{
+  // Constants
+  public static final int HEADER_BYTES      = 8;
+  public static final int EXTENTS_PER_BLOCK = ( FSConstants.BLOCK_SIZE - HEADER_BYTES ) / Extent.BYTES_PER_EXTENT;
+
+  // Member data
+  private List<Extent> extents;
+  private int          nextExtentBlock;
+
+  public ExtentBlock()
+  {
+    extents         = new ArrayList<>();
+    nextExtentBlock = 0;
+  }
+
+  @Override
+  public void parseData()
+  {
+    ByteBuffer buffer = ByteBuffer.wrap( data );
+    int numberOfExtents = Math.min( buffer.getInt(), EXTENTS_PER_BLOCK );
+    nextExtentBlock = buffer.getInt();
+    extents.clear();
+    for( int i = 0; i < numberOfExtents; i++ )
+    {
+      extents.add( new Extent( buffer.getInt(), buffer.getInt() ) );
+    }
+  }
+
+  @Override
+  public byte[] getData()
+  {
+    ByteBuffer buffer = ByteBuffer.allocate( FSConstants.BLOCK_SIZE );
+    buffer.putInt( extents.size() );
+    buffer.putInt( nextExtentBlock );
+    for( Extent extent : extents )
+    {
+      buffer.putInt( extent.getStart() );
+      buffer.putInt( extent.getLength() );
+    }
+
+    return buffer.array();
+  }
+
+  public boolean addExtent( Extent extent )
+  {
+    if( isFull() ) return false;
+
+    extents.add( extent );
+    return true;
+  }
+
+  public boolean isFull()
+  {
+    return extents.size() >= EXTENTS_PER_BLOCK;
+  }
+
+  public List<Extent> getExtents()
+  {
+    return extents;
+  }
+
+  public void setNextExtentBlock( int nextExtentBlock )
+  {
+    this.nextExtentBlock = nextExtentBlock;
+  }
+
+  public int getNextExtentBlock()
+  {
+    return nextExtentBlock;
+  }
+}
@@ -3,6 +3,11 @@ package edu.wcsu.wcsufs.FSDataStructures;
 public final class FSConstants
 {
   public static final int BLOCK_SIZE       = 4096;
+  public static final int SECTOR_SIZE      = 512;
   public static final int INODES_PER_BLOCK = 128;
   public static final int BYTES_PER_INODE  = 32;
+
+  // Version 2 INodes have a 64 bit file size and room to spare
+  public static final int INODES_PER_BLOCK_V2 = 64;
+  public static final int BYTES_PER_INODE_V2  = 64;
 }
@@ -1,21 +1,38 @@
 package edu.wcsu.wcsufs.FSDataStructures;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class INode
 {
   // Member data
   private final int INodeNumber;
-  private int       fileSize;
+  private long      fileSize;
   private int       allocatedBlocks;
   private INodeType type;
   private int       numberOfLinks;
   private int       accessMode;
+  private int       flags;
 
   private int[]     directPointers;
   private int       indirectPointer;
+  private int       doubleIndirectPointer;
+  private int       tripleIndirectPointer;
+
+  // Used instead of the pointers when the file is mapped by extents
+  private List<Extent> extents;
+  private int          extentBlockPointer;
 
   // Constants
   public static final int NUMBER_OF_DIRECT_POINTERS = 4;
 
+  // The extents kept in the INode itself; any more go into a chain of ExtentBlocks
+  public static final int NUMBER_OF_INLINE_EXTENTS = 5;
+
+  // Flags
+  // Set when the file is mapped by extents rather than block by block. Only version 2 INodes have room for the flags.
+  public static final int EXTENTS = 0x1;
+
   private int lastUsedPointer;
 
   public INode( int INodeNumber )
@@ -24,6 +41,7 @@ public class INode
     allocatedBlocks = 0;
     numberOfLinks   = 0;
     accessMode      = 0;
+    flags           = 0;
     type            = INodeType.Unused;
 
     // Initialize the data pointers
@@ -34,7 +52,12 @@ public class INode
     }
     lastUsedPointer = -1;
 
-    indirectPointer  = 0;
+    indirectPointer       = 0;
+    doubleIndirectPointer = 0;
+    tripleIndirectPointer = 0;
+
+    extents            = new ArrayList<>();
+    extentBlockPointer = 0;
   }
 
   // Accessors
@@ -43,12 +66,12 @@ public class INode
     return INodeNumber;
   }
 
-  public void setFileSize( int fileSize )
+  public void setFileSize( long fileSize )
   {
     this.fileSize = fileSize;
   }
 
-  public int getFileSize()
+  public long getFileSize()
   {
     return fileSize;
   }
@@ -93,6 +116,21 @@ public class INode
     return accessMode;
   }
 
+  public void setFlags( int flags )
+  {
+    this.flags = flags;
+  }
+
+  public int getFlags()
+  {
+    return flags;
+  }
+
+  public boolean isExtentMapped()
+  {
+    return ( flags & EXTENTS ) != 0;
+  }
+
   public void setIndirectPointer( int indirectPointer )
   {
     this.indirectPointer = indirectPointer;
@@ -103,6 +141,51 @@ public class INode
     return indirectPointer;
   }
 
+  // Only version 2 INodes have room for the double and triple indirect pointers
+  public void setDoubleIndirectPointer( int doubleIndirectPointer )
+  {
+    this.doubleIndirectPointer = doubleIndirectPointer;
+  }
+
+  public int getDoubleIndirectPointer()
+  {
+    return doubleIndirectPointer;
+  }
+
+  public void setTripleIndirectPointer( int tripleIndirectPointer )
+  {
+    this.tripleIndirectPointer = tripleIndirectPointer;
+  }
+
+  public int getTripleIndirectPointer()
+  {
+    return tripleIndirectPointer;
+  }
+
+  // Returns false once the INode holds NUMBER_OF_INLINE_EXTENTS extents
+  public boolean addExtent( Extent extent )
+  {
+    if( extents.size() >= NUMBER_OF_INLINE_EXTENTS ) return false;
+
+    extents.add( extent );
+    return true;
+  }
+
+  public List<Extent> getExtents()
+  {
+    return extents;
+  }
+
+  public void setExtentBlockPointer( int extentBlockPointer )
+  {
+    this.extentBlockPointer = extentBlockPointer;
+  }
+
+  public int getExtentBlockPointer()
+  {
+    return extentBlockPointer;
+  }
+
   public boolean addDirectPointer( int directPointer )
   {
     boolean success = false;
@@ -1,62 +1,62 @@
 package edu.wcsu.wcsufs.FSDataStructures;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 public class IndirectPointerBlock extends DataBlock
 {
+  // Constants
+  public static final int POINTERS_PER_BLOCK = FSConstants.BLOCK_SIZE / 4;
+
   // Member data
-  private List<Integer> indirectPointers;
-  private final int     addressOfFirstDataBlock;
+  // The pointers in use are the first numberOfPointers; the block bytes are only brought up to date by getData.
+  private final int[]     pointers;
+  private int             numberOfPointers;
+  private final IntBuffer pointerView;
+  private final int       addressOfFirstDataBlock;
 
   public IndirectPointerBlock( int addressOfFirstDataBlock )
   {
-    indirectPointers = new ArrayList<>();
+    pointers         = new int[ POINTERS_PER_BLOCK ];
+    numberOfPointers = 0;
+    pointerView      = ByteBuffer.wrap( data ).asIntBuffer();
     this.addressOfFirstDataBlock = addressOfFirstDataBlock;
   }
 
   @Override
-  public void setData( byte[] data )
+  public void parseData()
   {
-    super.setData( data );
-
-    // Create the array of indirect pointers
-    for( int i = 0; i < data.length; i += 4 )
+    // The pointers run up to the first one that is unset
+    numberOfPointers = 0;
+    while( numberOfPointers < POINTERS_PER_BLOCK )
     {
-      int indirectPointer = ByteBuffer.wrap( data, i, 4 ).getInt();
+      int indirectPointer = pointerView.get( numberOfPointers );
       if( indirectPointer < addressOfFirstDataBlock )
       {
         break;
       }
 
-      indirectPointers.add( indirectPointer );
+      pointers[ numberOfPointers++ ] = indirectPointer;
     }
   }
 
   @Override
   public byte[] getData()
   {
-    byte[] temp = new byte[ FSConstants.BLOCK_SIZE ];
+    // Serialize in place: the pointers, then zeros
+    pointerView.clear();
+    pointerView.put( pointers, 0, numberOfPointers );
+    Arrays.fill( data, numberOfPointers * 4, data.length, (byte)0 );
 
-    // Loop over the indirect pointers
-    byte[] tempData;
-    int pointerOffset = 0;
-    for( int indirectPointer: indirectPointers )
-    {
-      tempData = ByteBuffer.allocate( 4 ).putInt( indirectPointer ).array();
-      System.arraycopy( tempData, 0, temp,  pointerOffset, 4 );
-      pointerOffset += 4;
-    }
-
-    return temp;
+    return data;
   }
 
   public boolean addIndirectPointer( int indirectPointer )
   {
-    if( indirectPointers.size() - 1 < FSConstants.BLOCK_SIZE / 4 )
+    if( numberOfPointers < POINTERS_PER_BLOCK )
     {
-      indirectPointers.add( indirectPointer );
+      pointers[ numberOfPointers++ ] = indirectPointer;
       return true;
     }
     else
@@ -65,9 +65,26 @@ public class IndirectPointerBlock extends DataBlock
     }
   }
 
-  public List<Integer> getIndirectPointers()
+  public boolean isFull()
+  {
+    return numberOfPointers >= POINTERS_PER_BLOCK;
+  }
+
+  public int getNumberOfPointers()
+  {
+    return numberOfPointers;
+  }
+
+  public int getPointer( int index )
+  {
+    assert index >= 0 && index < numberOfPointers;
+    return pointers[ index ];
+  }
+
+  public void setPointer( int index, int indirectPointer )
   {
-    return indirectPointers;
+    assert index >= 0 && index < numberOfPointers;
+    pointers[ index ] = indirectPointer;
   }
 
 }
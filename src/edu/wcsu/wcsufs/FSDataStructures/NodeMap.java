@@ -1,36 +1,65 @@
 package edu.wcsu.wcsufs.FSDataStructures;
 
 import java.util.BitSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 public class NodeMap
 {
+  // Constants
+  // How many free extents past the hint allocateNear looks at before it settles for the best fit
+  public static final int MAX_NEAR_EXTENTS = 8;
+
   // Member data
   private final NodeMapType type;
+  private final int         numberOfBits;
   private BitSet            nodeMap;
 
+  // Where the next single allocation starts looking; it moves on past every allocation and wraps around.
+  private int cursor;
+
+  // The runs of free nodes, built from the bitmap the first time they are needed and then kept up to date.
+  // They are held both by start (start -> length) and by length, so that the smallest run that fits can be found quickly.
+  private TreeMap<Integer, Integer> freeExtentsByStart = null;
+  private TreeSet<Long>             freeExtentsByLength = null;
+
+  // The 64 bit words of the map changed since it was last written out
+  private BitSet dirtyWords;
+
   // Constructor
   public NodeMap( NodeMapType type, int numberOfBits )
   {
-    this.type    = type;
-    this.nodeMap = new BitSet( numberOfBits );
+    this.type         = type;
+    this.numberOfBits = numberOfBits;
+    this.nodeMap      = new BitSet( numberOfBits );
+    this.cursor       = 0;
+    this.dirtyWords   = new BitSet();
   }
 
+  // All changes to the allocation must go through here or through the allocate methods,
+  // rather than through the BitSet, so that the free extents stay correct.
   public void setNodeAllocation( boolean allocated, int nodeNumber )
   {
-    assert nodeNumber >= 0 && nodeNumber < nodeMap.size();
+    assert nodeNumber >= 0 && nodeNumber < numberOfBits;
+    if( allocated == nodeMap.get( nodeNumber ) ) return;
+
     if( allocated )
     {
       nodeMap.set( nodeNumber );
+      if( freeExtentsByStart != null ) removeFreeRange( nodeNumber, 1 );
     }
     else
     {
       nodeMap.clear( nodeNumber );
+      if( freeExtentsByStart != null ) addFreeRange( nodeNumber, 1 );
     }
+    markDirty( nodeNumber, 1 );
   }
 
   public boolean isNodeAllocated( int nodeNumber )
   {
-    assert nodeNumber > 0 && nodeNumber < nodeMap.size();
+    assert nodeNumber >= 0 && nodeNumber < numberOfBits;
     return nodeMap.get( nodeNumber );
   }
 
@@ -39,8 +68,192 @@ public class NodeMap
     return nodeMap.nextClearBit( 0 );
   }
 
+  // Allocate one node, looking from the cursor onwards (next fit). Returns -1 if every node is in use.
+  public int allocate()
+  {
+    int nodeNumber = nodeMap.nextClearBit( cursor );
+    if( nodeNumber >= numberOfBits )
+    {
+      nodeNumber = nodeMap.nextClearBit( 0 );
+      if( nodeNumber >= numberOfBits ) return -1;
+    }
+
+    setNodeAllocation( true, nodeNumber );
+    cursor = ( nodeNumber + 1 ) % numberOfBits;
+    return nodeNumber;
+  }
+
+  // Allocate count consecutive nodes from the smallest free run that holds them.
+  // Returns the first node, or -1 if there is no such run.
+  public int allocateContiguous( int count )
+  {
+    assert count > 0;
+    buildFreeExtents();
+
+    Long extent = freeExtentsByLength.ceiling( lengthKey( count, 0 ) );
+    if( extent == null ) return -1;
+
+    int start = (int)( extent & 0xffffffffL );
+    allocateRange( start, count );
+    return start;
+  }
+
+  // Allocate count consecutive nodes as close after the hint as possible, for instance right after
+  // the previous block of the same file. Falls back to allocateContiguous if nothing nearby is big enough.
+  public int allocateNear( int hint, int count )
+  {
+    assert count > 0;
+    buildFreeExtents();
+    if( hint < 0 || hint >= numberOfBits ) return allocateContiguous( count );
+
+    // The hint itself may be free, with enough room after it
+    Map.Entry<Integer, Integer> extent = freeExtentsByStart.floorEntry( hint );
+    if( extent != null && extent.getKey() + extent.getValue() >= hint + count )
+    {
+      allocateRange( hint, count );
+      return hint;
+    }
+
+    // Otherwise try the next few runs
+    int extentsSeen = 0;
+    for( Map.Entry<Integer, Integer> nextExtent : freeExtentsByStart.tailMap( hint, false ).entrySet() )
+    {
+      if( nextExtent.getValue() >= count )
+      {
+        allocateRange( nextExtent.getKey(), count );
+        return nextExtent.getKey();
+      }
+      if( ++extentsSeen >= MAX_NEAR_EXTENTS ) break;
+    }
+
+    return allocateContiguous( count );
+  }
+
+  // The number of blocks needed to store a map of this many bits; the map is stored as whole 64 bit words.
+  public static int getNumberOfBlocks( int numberOfBits )
+  {
+    long numberOfBytes = ( ( 64L + numberOfBits - 1 ) / 64 ) * 8;
+    return (int)( ( numberOfBytes + FSConstants.BLOCK_SIZE - 1 ) / FSConstants.BLOCK_SIZE );
+  }
+
+  public NodeMapType getType()
+  {
+    return type;
+  }
+
+  public int getNumberOfBits()
+  {
+    return numberOfBits;
+  }
+
+  public int getNumberOfFreeExtents()
+  {
+    buildFreeExtents();
+    return freeExtentsByStart.size();
+  }
+
   public BitSet getNodeMap()
   {
     return nodeMap;
   }
+
+  // Dirty tracking, in 64 bit words: bits 64 * w to 64 * w + 63 make up word w
+  public boolean isDirty()
+  {
+    return !dirtyWords.isEmpty();
+  }
+
+  public BitSet getDirtyWords()
+  {
+    return dirtyWords;
+  }
+
+  // Called once the map has been written out
+  public void clearDirty()
+  {
+    dirtyWords.clear();
+  }
+
+  private void markDirty( int start, int count )
+  {
+    dirtyWords.set( start / 64, ( start + count - 1 ) / 64 + 1 );
+  }
+
+  private void allocateRange( int start, int count )
+  {
+    nodeMap.set( start, start + count );
+    removeFreeRange( start, count );
+    markDirty( start, count );
+    cursor = ( start + count ) % numberOfBits;
+  }
+
+  private void buildFreeExtents()
+  {
+    if( freeExtentsByStart != null ) return;
+
+    freeExtentsByStart  = new TreeMap<>();
+    freeExtentsByLength = new TreeSet<>();
+    int start = nodeMap.nextClearBit( 0 );
+    while( start < numberOfBits )
+    {
+      int end = nodeMap.nextSetBit( start );
+      if( end < 0 || end > numberOfBits ) end = numberOfBits;
+      putExtent( start, end - start );
+      start = nodeMap.nextClearBit( end );
+    }
+  }
+
+  // The range must lie inside one free extent
+  private void removeFreeRange( int start, int count )
+  {
+    Map.Entry<Integer, Integer> extent = freeExtentsByStart.floorEntry( start );
+    assert extent != null && extent.getKey() + extent.getValue() >= start + count;
+
+    int extentStart = extent.getKey();
+    int extentEnd   = extentStart + extent.getValue();
+    deleteExtent( extentStart, extent.getValue() );
+
+    if( start > extentStart )       putExtent( extentStart, start - extentStart );
+    if( start + count < extentEnd ) putExtent( start + count, extentEnd - ( start + count ) );
+  }
+
+  // The range must not overlap any free extent; it is merged with the extents on either side.
+  private void addFreeRange( int start, int count )
+  {
+    int end = start + count;
+
+    Map.Entry<Integer, Integer> before = freeExtentsByStart.lowerEntry( start );
+    if( before != null && before.getKey() + before.getValue() == start )
+    {
+      deleteExtent( before.getKey(), before.getValue() );
+      start = before.getKey();
+    }
+
+    Integer afterLength = freeExtentsByStart.get( end );
+    if( afterLength != null )
+    {
+      deleteExtent( end, afterLength );
+      end += afterLength;
+    }
+
+    putExtent( start, end - start );
+  }
+
+  private void putExtent( int start, int length )
+  {
+    freeExtentsByStart.put( start, length );
+    freeExtentsByLength.add( lengthKey( length, start ) );
+  }
+
+  private void deleteExtent( int start, int length )
+  {
+    freeExtentsByStart.remove( start );
+    freeExtentsByLength.remove( lengthKey( length, start ) );
+  }
+
+  // Orders extents by length, then by start
+  private static long lengthKey( int length, int start )
+  {
+    return ( (long)length << 32 ) | ( start & 0xffffffffL );
+  }
 }
@@ -5,8 +5,25 @@ public class SuperBlock
   // Constants
   public static int MAGIC = 0x57435355;   // WCSU in ASCII
 
+  // Versions of the on-disk format.  Version 1 has 32 byte INodes with a 32 bit file size; version 2 has
+  // 64 byte INodes with a 64 bit file size.  Block numbers are 32 bits in both, which allows for 8 TB.
+  public static final int VERSION_1       = 1;
+  public static final int VERSION_2       = 2;
+  public static final int CURRENT_VERSION = VERSION_2;
+
+  // Flags
+  // Set when only part of the INode table has been written by Format; see numberOfInitializedINodeBlocks
+  public static final int INODE_TABLE_UNINITIALIZED = 0x1;
+
+  // Set when the file system is divided into block groups; see blocksPerGroup
+  public static final int BLOCK_GROUPS = 0x2;
+
+  // Set when new files are mapped by extents rather than block by block; see INode.EXTENTS
+  public static final int EXTENTS = 0x4;
+
   // Member data
   private int magic;
+  private int version = CURRENT_VERSION;
   private int numberOfINodes;
   private int numberOfDataBlocks;
   private int addressOfINodeMap;
@@ -14,6 +31,20 @@ public class SuperBlock
   private int addressOfFirstInode;
   private int addressOfFirstDataBlock;
   private int totalBlocks;
+  private int flags;
+  private int numberOfInitializedINodeBlocks;
+  private int numberOfINodeMapBlocks;
+  private int numberOfDataBlockMapBlocks;
+
+  // With block groups, group g starts at block 1 + g * blocksPerGroup and holds, in order, one block of INode map,
+  // one block of data block map, INodesPerGroup / getINodesPerBlock() INode blocks and dataBlocksPerGroup data blocks.
+  // Any blocks left over at the end of a group are not used.  INode n is in group n / INodesPerGroup and data block i
+  // in group i / dataBlocksPerGroup; the last group may have fewer data blocks.  Both counts are multiples of 64, so
+  // each group's part of a Node Map is made up of whole words.
+  // The addresses of the Node Maps, the first INode and the first data block are those of group 0.
+  private int blocksPerGroup;
+  private int INodesPerGroup;
+  private int dataBlocksPerGroup;
 
   public SuperBlock()
   {
@@ -30,6 +61,45 @@ public class SuperBlock
     return magic;
   }
 
+  public void setVersion( int version )
+  {
+    this.version = version;
+  }
+
+  public int getVersion()
+  {
+    return version;
+  }
+
+  public int getINodesPerBlock()
+  {
+    return ( version >= VERSION_2 ) ? FSConstants.INODES_PER_BLOCK_V2 : FSConstants.INODES_PER_BLOCK;
+  }
+
+  public int getBytesPerINode()
+  {
+    return ( version >= VERSION_2 ) ? FSConstants.BYTES_PER_INODE_V2 : FSConstants.BYTES_PER_INODE;
+  }
+
+  // The largest number of data blocks an INode can map. Version 1 INodes stop after the single indirect block.
+  public long getMaximumNumberOfFileBlocks()
+  {
+    long pointersPerBlock = IndirectPointerBlock.POINTERS_PER_BLOCK;
+    long numberOfBlocks   = INode.NUMBER_OF_DIRECT_POINTERS + pointersPerBlock;
+    if( version >= VERSION_2 )
+    {
+      numberOfBlocks += pointersPerBlock * pointersPerBlock + pointersPerBlock * pointersPerBlock * pointersPerBlock;
+    }
+    return numberOfBlocks;
+  }
+
+  // Limited both by the size field of the INode and by the blocks it can map
+  public long getMaximumFileSize()
+  {
+    long maximumSize = ( version >= VERSION_2 ) ? Long.MAX_VALUE : Integer.MAX_VALUE;
+    return Math.min( maximumSize, getMaximumNumberOfFileBlocks() * FSConstants.BLOCK_SIZE );
+  }
+
   public void setNumberOfINodes( int numberOfINodes )
   {
     this.numberOfINodes = numberOfINodes;
@@ -99,6 +169,181 @@ public class SuperBlock
   {
     return totalBlocks;
   }
-}
 
+  public void setFlags( int flags )
+  {
+    this.flags = flags;
+  }
+
+  public int getFlags()
+  {
+    return flags;
+  }
+
+  public void setNumberOfInitializedINodeBlocks( int numberOfInitializedINodeBlocks )
+  {
+    this.numberOfInitializedINodeBlocks = numberOfInitializedINodeBlocks;
+  }
+
+  public int getNumberOfInitializedINodeBlocks()
+  {
+    return numberOfInitializedINodeBlocks;
+  }
+
+  // Each Node Map takes up as many consecutive blocks as it needs, starting at its address
+  public void setNumberOfINodeMapBlocks( int numberOfINodeMapBlocks )
+  {
+    this.numberOfINodeMapBlocks = numberOfINodeMapBlocks;
+  }
+
+  public int getNumberOfINodeMapBlocks()
+  {
+    return numberOfINodeMapBlocks;
+  }
+
+  public void setNumberOfDataBlockMapBlocks( int numberOfDataBlockMapBlocks )
+  {
+    this.numberOfDataBlockMapBlocks = numberOfDataBlockMapBlocks;
+  }
 
+  public int getNumberOfDataBlockMapBlocks()
+  {
+    return numberOfDataBlockMapBlocks;
+  }
+
+  public void setBlocksPerGroup( int blocksPerGroup )
+  {
+    this.blocksPerGroup = blocksPerGroup;
+  }
+
+  public int getBlocksPerGroup()
+  {
+    return blocksPerGroup;
+  }
+
+  public void setINodesPerGroup( int INodesPerGroup )
+  {
+    this.INodesPerGroup = INodesPerGroup;
+  }
+
+  // Without block groups all the INodes count as one group, and likewise the data blocks
+  public int getINodesPerGroup()
+  {
+    return hasBlockGroups() ? INodesPerGroup : numberOfINodes;
+  }
+
+  public void setDataBlocksPerGroup( int dataBlocksPerGroup )
+  {
+    this.dataBlocksPerGroup = dataBlocksPerGroup;
+  }
+
+  public int getDataBlocksPerGroup()
+  {
+    return hasBlockGroups() ? dataBlocksPerGroup : numberOfDataBlocks;
+  }
+
+  public boolean hasBlockGroups()
+  {
+    return ( flags & BLOCK_GROUPS ) != 0;
+  }
+
+  public boolean hasExtents()
+  {
+    return ( flags & EXTENTS ) != 0;
+  }
+
+  public int getNumberOfGroups()
+  {
+    return hasBlockGroups() ? ( numberOfDataBlocks + dataBlocksPerGroup - 1 ) / dataBlocksPerGroup : 1;
+  }
+
+  public int getINodeBlocksPerGroup()
+  {
+    return getINodesPerGroup() / getINodesPerBlock();
+  }
+
+  public int getGroupOfINode( int INodeNumber )
+  {
+    return INodeNumber / getINodesPerGroup();
+  }
+
+  public int getGroupOfDataBlock( int dataBlockIndex )
+  {
+    return dataBlockIndex / getDataBlocksPerGroup();
+  }
+
+  public int getFirstINodeOfGroup( int group )
+  {
+    return group * getINodesPerGroup();
+  }
+
+  public int getFirstDataBlockOfGroup( int group )
+  {
+    return group * getDataBlocksPerGroup();
+  }
+
+  // Where things are on disk
+  public int getAddressOfNodeMap( NodeMapType type, int group )
+  {
+    if( !hasBlockGroups() )
+    {
+      return ( type == NodeMapType.INodeMap ) ? addressOfINodeMap : addressOfDataBlockMap;
+    }
+    return getAddressOfGroup( group ) + ( ( type == NodeMapType.INodeMap ) ? 0 : 1 );
+  }
+
+  public int getAddressOfINodeBlock( int INodeBlockNumber )
+  {
+    if( !hasBlockGroups() ) return addressOfFirstInode + INodeBlockNumber;
+
+    int INodeBlocksPerGroup = getINodeBlocksPerGroup();
+    return getAddressOfGroup( INodeBlockNumber / INodeBlocksPerGroup ) + 2 + INodeBlockNumber % INodeBlocksPerGroup;
+  }
+
+  public long getOffsetOfINode( int INodeNumber )
+  {
+    return (long)getAddressOfINodeBlock( INodeNumber / getINodesPerBlock() ) * FSConstants.BLOCK_SIZE
+         + ( INodeNumber % getINodesPerBlock() ) * getBytesPerINode();
+  }
+
+  public int getAddressOfDataBlock( int dataBlockIndex )
+  {
+    if( !hasBlockGroups() ) return addressOfFirstDataBlock + dataBlockIndex;
+
+    return getAddressOfGroup( dataBlockIndex / dataBlocksPerGroup ) + 2 + getINodeBlocksPerGroup() + dataBlockIndex % dataBlocksPerGroup;
+  }
+
+  // The reverse of getAddressOfDataBlock; returns -1 if the address is not that of a data block
+  public int getDataBlockIndex( int address )
+  {
+    int dataBlockIndex;
+    if( !hasBlockGroups() )
+    {
+      dataBlockIndex = address - addressOfFirstDataBlock;
+    }
+    else
+    {
+      if( address < 1 ) return -1;
+      int blockInGroup = ( address - 1 ) % blocksPerGroup - 2 - getINodeBlocksPerGroup();
+      if( blockInGroup < 0 || blockInGroup >= dataBlocksPerGroup ) return -1;
+      dataBlockIndex = ( ( address - 1 ) / blocksPerGroup ) * dataBlocksPerGroup + blockInGroup;
+    }
+    return ( dataBlockIndex >= 0 && dataBlockIndex < numberOfDataBlocks ) ? dataBlockIndex : -1;
+  }
+
+  private int getAddressOfGroup( int group )
+  {
+    return 1 + group * blocksPerGroup;
+  }
+
+  // Blocks of the INode table past the high-water mark have never been written and must be treated as all Unused.
+  public boolean isINodeTableInitialized()
+  {
+    return ( flags & INODE_TABLE_UNINITIALIZED ) == 0;
+  }
+
+  public boolean isINodeBlockInitialized( int INodeBlockNumber )
+  {
+    return isINodeTableInitialized() || INodeBlockNumber < numberOfInitializedINodeBlocks;
+  }
+}
@@ -0,0 +1,22 @@
+package edu.wcsu.wcsufs.Readers;
+
+import edu.wcsu.wcsufs.Devices.BlockDevice;
+import edu.wcsu.wcsufs.FSDataStructures.DataBlock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ReadDataBlock
+{
+  public static DataBlock read( BlockDevice device, int blockNumber, DataBlock dataBlock ) throws IOException
+  {
+    // Read a whole block straight into the block's own bytes ...
+    device.readBlock( blockNumber, ByteBuffer.wrap( dataBlock.getBuffer() ) );
+
+    // ... and let the block parse them.
+    dataBlock.parseData();
+
+    // That's it
+    return dataBlock;
+  }
+}
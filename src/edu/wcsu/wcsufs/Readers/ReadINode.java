@@ -1,73 +1,102 @@
 package edu.wcsu.wcsufs.Readers;
 
+import edu.wcsu.wcsufs.Devices.BlockDevice;
+import edu.wcsu.wcsufs.FSDataStructures.Extent;
+import edu.wcsu.wcsufs.FSDataStructures.FSConstants;
 import edu.wcsu.wcsufs.FSDataStructures.INode;
 import edu.wcsu.wcsufs.FSDataStructures.INodeType;
+import edu.wcsu.wcsufs.FSDataStructures.SuperBlock;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 
 public class ReadINode
 {
-  public static INode read( RandomAccessFile inputFile, int INodeNumber ) throws IOException
+  public static INode read( BlockDevice device, SuperBlock superBlock, int INodeNumber ) throws IOException
   {
-    // Allocate a data buffer
-    byte[] data = new byte[4];
+    // Read in the whole INode with a single transfer
+    ByteBuffer data = ByteBuffer.allocate( superBlock.getBytesPerINode() );
+    device.read( superBlock.getOffsetOfINode( INodeNumber ), data );
+    data.flip();
 
-    // Read in the size
-    inputFile.read( data, 0, 4 );
-    int fileSize = ByteBuffer.wrap( data ).getInt();
+    return decode( data, INodeNumber, superBlock.getVersion() );
+  }
 
-    // Get the number of links
-    data = new byte[1];
-    inputFile.read( data, 0, 1 );
-    int numbeOfLinks = data[0];
+  // Read a whole block of INodes. The buffer must hold at least one block and is reused by the caller.
+  public static INode[] readBlock( BlockDevice device, SuperBlock superBlock, int INodeBlockNumber, ByteBuffer buffer ) throws IOException
+  {
+    buffer.clear();
+    buffer.limit( FSConstants.BLOCK_SIZE );
+    device.readBlock( superBlock.getAddressOfINodeBlock( INodeBlockNumber ), buffer );
+    buffer.flip();
+
+    int INodesPerBlock = superBlock.getINodesPerBlock();
+    INode[] INodes = new INode[ INodesPerBlock ];
+    int firstINodeNumber = INodeBlockNumber * INodesPerBlock;
+    for( int i = 0; i < INodesPerBlock; i++ )
+    {
+      INodes[i] = decode( buffer, firstINodeNumber + i, superBlock.getVersion() );
+    }
 
-    // Get the type
-    inputFile.read( data, 0, 1 );
-    INodeType type = INodeType.lookUpType( (int)data[0] );
+    return INodes;
+  }
 
-    // Get the access mode
-    data = new byte[1];
-    inputFile.read( data, 0, 1 );
-    int accessMode = data[0];
+  // Decode one INode of the given format version starting at the current position of the buffer
+  public static INode decode( ByteBuffer data, int INodeNumber, int version )
+  {
+    INode newINode = new INode( INodeNumber );
+    int start = data.position();
 
-    // Get the spare byte
-    data = new byte[1];
-    inputFile.read( data, 0, 1 );
-    int spare = data[0];
+    // Get the size
+    newINode.setFileSize( ( version >= SuperBlock.VERSION_2 ) ? data.getLong() : data.getInt() );
 
-    // Read in the number of allocated blocks
-    data = new byte[4];
-    inputFile.read( data, 0, 4 );
-    int allocatedBlocks = ByteBuffer.wrap( data ).getInt();
+    // Get the number of links, the type and the access mode
+    newINode.setNumberOfLinks( data.get() );
+    newINode.setType( INodeType.lookUpType( (int)data.get() ) );
+    newINode.setAccessMode( data.get() );
 
-    // Read in the direct pointers
-    int[] directPointers = new int[ INode.NUMBER_OF_DIRECT_POINTERS ];
+    // The flags of a version 2 INode; a version 1 INode has a spare byte here
+    int flags = data.get();
+    if( version >= SuperBlock.VERSION_2 )
+    {
+      newINode.setFlags( flags );
+    }
 
+    // Get the number of allocated blocks
+    newINode.setAllocatedBlocks( data.getInt() );
+
+    // An extent-mapped INode has its extents, up to the first empty one, and the extent block pointer instead of the pointers
+    if( newINode.isExtentMapped() )
+    {
+      for( int i = 0; i < INode.NUMBER_OF_INLINE_EXTENTS; i++ )
+      {
+        Extent extent = new Extent( data.getInt(), data.getInt() );
+        if( extent.getLength() > 0 ) newINode.addExtent( extent );
+      }
+      newINode.setExtentBlockPointer( data.getInt() );
+      data.position( start + FSConstants.BYTES_PER_INODE_V2 );
+      return newINode;
+    }
+
+    // Get the direct pointers
     for( int i = 0; i < INode.NUMBER_OF_DIRECT_POINTERS; i++ )
     {
-      inputFile.read( data, 0, 4 );
-      directPointers[i] = ByteBuffer.wrap( data ).getInt();
+      newINode.setDirectPointer( i, data.getInt() );
     }
 
-    // Read in the indirect pointer
-    inputFile.read( data, 0, 4 );
-    int indirectPointer = ByteBuffer.wrap( data ).getInt();
+    // Get the indirect pointer
+    newINode.setIndirectPointer( data.getInt() );
 
-    // Now make up the INode
-    INode newINode = new INode( INodeNumber );
-    newINode.setFileSize( fileSize );
-    newINode.setNumberOfLinks( numbeOfLinks );
-    newINode.setType( type );
-    newINode.setAccessMode( accessMode );
-    newINode.setAllocatedBlocks( allocatedBlocks );
-    newINode.setDirectPointers( directPointers );
-    newINode.setIndirectPointer( indirectPointer );
+    // A version 2 INode goes on with the double and triple indirect pointers; skip whatever is left
+    if( version >= SuperBlock.VERSION_2 )
+    {
+      newINode.setDoubleIndirectPointer( data.getInt() );
+      newINode.setTripleIndirectPointer( data.getInt() );
+      data.position( start + FSConstants.BYTES_PER_INODE_V2 );
+    }
 
     // That's it
     return newINode;
-
   }
 
 }
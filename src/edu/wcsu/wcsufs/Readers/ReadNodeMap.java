@@ -1,44 +1,51 @@
 package edu.wcsu.wcsufs.Readers;
 
+import edu.wcsu.wcsufs.Devices.BlockDevice;
 import edu.wcsu.wcsufs.FSDataStructures.NodeMap;
 import edu.wcsu.wcsufs.FSDataStructures.NodeMapType;
+import edu.wcsu.wcsufs.FSDataStructures.SuperBlock;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.BitSet;
 
 public class ReadNodeMap
 {
-  public static NodeMap read( RandomAccessFile inputFile, NodeMapType type, int numberOfBits ) throws IOException
+  public static NodeMap read( BlockDevice device, SuperBlock superBlock, NodeMapType type ) throws IOException
   {
     // Make up a new NodeMap with the required type and size
+    int numberOfBits = ( type == NodeMapType.INodeMap ) ? superBlock.getNumberOfINodes() : superBlock.getNumberOfDataBlocks();
     NodeMap nodeMap = new NodeMap( type, numberOfBits );
     BitSet map = nodeMap.getNodeMap();
 
-    // Make up a data array
-    // Make sure to round the number of bites up to a multiple of 8 before computing
-    // the number of bytes.
-    int numberOfDataBytes = ( 8 + numberOfBits - 1 ) / 8;
-    //System.out.println( "For " + numberOfBits + ", numberofDataBytes = " + numberOfDataBytes );
-    byte[] data = new byte[ numberOfDataBytes ];
-
-    // Read in the data
-    inputFile.read( data, 0, data.length );
-
-    // Now loop over the data and fill in the corresponding bite
-    int byteNumber = data.length - 1;
-    int bitNumber  = 0;
-    for( int i = 0; i < numberOfBits; i++ )
+    // Each block group has its own part of the map; without block groups there is a single part.
+    int bitsPerGroup = ( type == NodeMapType.INodeMap ) ? superBlock.getINodesPerGroup() : superBlock.getDataBlocksPerGroup();
+    int numberOfWords = ( 64 + numberOfBits - 1 ) / 64;
+    long[] words = new long[ numberOfWords ];
+    for( int group = 0; group < superBlock.getNumberOfGroups(); group++ )
     {
-      // Check if the bit is set in the data
-      if( (data[byteNumber] & 1 << bitNumber) != 0  )
+      // Each part is stored as whole 64 bit words, so round the number of bits up to a multiple of 64
+      // before computing the number of bytes.  This is the length WriteNodeMap writes; it may run
+      // on past the block at the part's address into the following blocks.
+      int firstWord          = group * bitsPerGroup / 64;
+      int bitsInGroup        = Math.min( bitsPerGroup, numberOfBits - group * bitsPerGroup );
+      int numberOfGroupWords = ( 64 + bitsInGroup - 1 ) / 64;
+      ByteBuffer data = ByteBuffer.allocate( numberOfGroupWords * 8 );
+
+      // Read in the data
+      device.readBlock( superBlock.getAddressOfNodeMap( type, group ), data );
+
+      // The bytes are in reverse order: the last byte holds the part's first 8 bits, with the first as its lowest bit.
+      // That makes each group of 8 bytes a big-endian word, with the first word at the end.
+      for( int i = 0; i < numberOfGroupWords; i++ )
       {
-        map.set( i );
+        words[ firstWord + i ] = data.getLong( ( numberOfGroupWords - 1 - i ) * 8 );
       }
-
-      bitNumber = (bitNumber + 1) % 8;
-      if( (i + 1) % 8 == 0 ) byteNumber--;
     }
+    map.or( BitSet.valueOf( words ) );
+
+    // Ignore anything in the padding past the last node
+    map.clear( numberOfBits, numberOfWords * 64 );
 
     // That's it
     return nodeMap;
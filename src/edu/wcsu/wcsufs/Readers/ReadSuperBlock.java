@@ -1,35 +1,50 @@
 package edu.wcsu.wcsufs.Readers;
 
+import edu.wcsu.wcsufs.Devices.BlockDevice;
 import edu.wcsu.wcsufs.Exceptions.IncorrectMagicException;
+import edu.wcsu.wcsufs.Exceptions.UnsupportedVersionException;
 import edu.wcsu.wcsufs.FSDataStructures.SuperBlock;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 
 public class ReadSuperBlock
 {
-  public static SuperBlock read( RandomAccessFile inputFile ) throws IOException, IncorrectMagicException
+  // The number of bytes used by the fields of a super block
+  public static final int SUPER_BLOCK_BYTES = 64;
+
+  public static SuperBlock read( BlockDevice device ) throws IOException, IncorrectMagicException, UnsupportedVersionException
   {
     // The super block must be the very first block
-    byte[] data = new byte[4];
-    inputFile.seek( 0 );
-    inputFile.read( data, 0, 4 );
-    int magic = ByteBuffer.wrap( data ).getInt();
-    inputFile.read( data, 0, 4 );
-    int numberOfINodes = ByteBuffer.wrap( data ).getInt();
-    inputFile.read( data, 0, 4 );
-    int numberOfDataBlocks = ByteBuffer.wrap( data ).getInt();
-    inputFile.read( data, 0, 4 );
-    int addressOfINodeMap = ByteBuffer.wrap( data ).getInt();
-    inputFile.read( data, 0, 4 );
-    int addressOfDataBlockMap = ByteBuffer.wrap( data ).getInt();
-    inputFile.read( data, 0, 4 );
-    int addressOfFirstINode = ByteBuffer.wrap( data ).getInt();
-    inputFile.read( data, 0, 4 );
-    int addressOfFirstDataBlock = ByteBuffer.wrap( data ).getInt();
-    inputFile.read( data, 0, 4 );
-    int totalBlocks = ByteBuffer.wrap( data ).getInt();
+    ByteBuffer data = ByteBuffer.allocate( SUPER_BLOCK_BYTES );
+    device.readBlock( 0, data );
+    data.flip();
+
+    int magic                   = data.getInt();
+    int numberOfINodes          = data.getInt();
+    int numberOfDataBlocks      = data.getInt();
+    int addressOfINodeMap       = data.getInt();
+    int addressOfDataBlockMap   = data.getInt();
+    int addressOfFirstINode     = data.getInt();
+    int addressOfFirstDataBlock = data.getInt();
+    int totalBlocks             = data.getInt();
+
+    // Older file systems leave these zero, which means the whole INode table is initialized.
+    int flags                          = data.getInt();
+    int numberOfInitializedINodeBlocks = data.getInt();
+
+    // Older file systems leave these zero too; their Node Maps always took up a single block.
+    int numberOfINodeMapBlocks     = Math.max( 1, data.getInt() );
+    int numberOfDataBlockMapBlocks = Math.max( 1, data.getInt() );
+
+    // Only used when the BLOCK_GROUPS flag is set
+    int blocksPerGroup     = data.getInt();
+    int INodesPerGroup     = data.getInt();
+    int dataBlocksPerGroup = data.getInt();
+
+    // File systems from before there were versions leave this zero; they are all version 1.
+    int version = data.getInt();
+    if( version == 0 ) version = SuperBlock.VERSION_1;
 
     // Check the magic
     if( magic != SuperBlock.MAGIC )
@@ -37,8 +52,15 @@ public class ReadSuperBlock
       throw new IncorrectMagicException( "This does not appear to be a WCSU file system: the magic is incorrect" );
     }
 
+    // Check the version
+    if( version > SuperBlock.CURRENT_VERSION )
+    {
+      throw new UnsupportedVersionException( "This WCSU file system is version " + version + "; only versions up to " + SuperBlock.CURRENT_VERSION + " are supported" );
+    }
+
     SuperBlock superBlock = new SuperBlock();
     superBlock.setMagic( magic );
+    superBlock.setVersion( version );
     superBlock.setNumberOfINodes( numberOfINodes );
     superBlock.setNumberOfDataBlocks( numberOfDataBlocks );
     superBlock.setAddressOfINodeMap( addressOfINodeMap );
@@ -46,6 +68,13 @@ public class ReadSuperBlock
     superBlock.setAddressOfFirstInode( addressOfFirstINode );
     superBlock.setAddressOfFirstDataBlock( addressOfFirstDataBlock );
     superBlock.setTotalBlocks( totalBlocks );
+    superBlock.setFlags( flags );
+    superBlock.setNumberOfInitializedINodeBlocks( numberOfInitializedINodeBlocks );
+    superBlock.setNumberOfINodeMapBlocks( numberOfINodeMapBlocks );
+    superBlock.setNumberOfDataBlockMapBlocks( numberOfDataBlockMapBlocks );
+    superBlock.setBlocksPerGroup( blocksPerGroup );
+    superBlock.setINodesPerGroup( INodesPerGroup );
+    superBlock.setDataBlocksPerGroup( dataBlocksPerGroup );
 
     return superBlock;
   }
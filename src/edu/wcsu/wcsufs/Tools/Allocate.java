@@ -1,19 +1,47 @@
 package edu.wcsu.wcsufs.Tools;
 
 
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
 
 public class Allocate
 {
+  // Constants
+  // The size of the buffer of zeros used when the file is preallocated
+  public static final int ZERO_BUFFER_SIZE = 1048576;
+
   public static void main( String[] args )
   {
+    // The only possible option is -p
+    Options allocateOptions = new Options();
+    allocateOptions.addOption( "p", "preallocate", false, "write zeros to the whole file instead of creating a sparse file" );
+
+    List<String> remainingArguments = null;
+    boolean      preallocate        = false;
+    try
+    {
+      CommandLine commandLine = new DefaultParser().parse( allocateOptions, args );
+      if( commandLine.hasOption( 'p' ) ) preallocate = true;
+      remainingArguments = commandLine.getArgList();
+    }
+    catch( ParseException pe )
+    {
+      System.out.println( pe.getMessage() );
+    }
+
     // Sanity check
-    if( args.length != 2 )
+    if( remainingArguments == null || remainingArguments.size() != 2 )
     {
-      System.out.println( "usage: Allocate path size" );
+      System.out.println( "usage: Allocate [-p] path size" );
       System.out.println( "args.length = " + args.length );
       for( String arg : args )
       {
@@ -23,7 +51,7 @@ public class Allocate
     }
 
     // Get the path
-    String filePath = args[0];
+    String filePath = remainingArguments.get( 0 );
     File file = new File( filePath );
 
     // First sanity check: make sure the does not already exist
@@ -33,6 +61,24 @@ public class Allocate
       System.exit( 2 );
     }
 
+    // Get the file size
+    String fileSizeString = remainingArguments.get( 1 ).trim();
+    long fileSize = -1;
+    try
+    {
+      fileSize = parseSize( fileSizeString );
+    }
+    catch( NumberFormatException nfe )
+    {
+      fileSize = -1;
+    }
+
+    if( fileSize <= 0 )
+    {
+      System.out.println( "The specified file size " + fileSizeString + " is illegal" );
+      System.exit( 4 );
+    }
+
     // Sanity check two: Try to create the file
     try
     {
@@ -43,43 +89,75 @@ public class Allocate
       System.out.println( "Could not create file: " + ioe );
       System.exit( 3 );
     }
+    System.out.println( "Allocating " + fileSizeString + " bytes to " + filePath );
 
-    // Get the file size
-    String fileSizeString = args[1].trim();
-    int fileSize = -1;
-    if( fileSizeString.endsWith( "K" ) )
+    try
     {
-      fileSize = Integer.parseInt( fileSizeString.substring(0, fileSizeString.length() - 1) ) * 1024;
+      RandomAccessFile randomAccessFile = new RandomAccessFile( file, "rw" );
+      if( preallocate )
+      {
+        // Pad the file out to the desired size by writing zeros to it, a large buffer at a time.
+        FileChannel channel = randomAccessFile.getChannel();
+        ByteBuffer  zeros   = ByteBuffer.allocateDirect( ZERO_BUFFER_SIZE );
+        long position = 0;
+        while( position < fileSize )
+        {
+          zeros.clear();
+          if( fileSize - position < ZERO_BUFFER_SIZE )
+          {
+            zeros.limit( (int)( fileSize - position ) );
+          }
+          position += channel.write( zeros, position );
+        }
+        channel.force( false );
+      }
+      else
+      {
+        // Just extend the file; the file system fills in zeros without storing them.
+        randomAccessFile.setLength( fileSize );
+      }
+      randomAccessFile.close();
     }
-    else if( fileSizeString.endsWith( "M" ) )
+    catch( IOException ioe )
     {
-      fileSize = Integer.parseInt( fileSizeString.substring(0, fileSizeString.length() - 1) ) * 1048576;
+      System.out.println( "Caught exception writing to new file " +  ioe );
     }
-    else
+    System.out.println( "File " + filePath + " is now ready for formatting" );
+  }
+
+  // A size in bytes, optionally followed by K, M or G. Throws NumberFormatException if it is not a number,
+  // if it is not positive, or if it is too large to be held in a long.
+  public static long parseSize( String sizeString )
+  {
+    sizeString = sizeString.trim();
+    long multiplier = 1L;
+    if( sizeString.endsWith( "K" ) )
     {
-      fileSize = Integer.parseInt( fileSizeString );
+      multiplier = 1024L;
     }
-
-    if( fileSize <= 0 )
+    else if( sizeString.endsWith( "M" ) )
     {
-      System.out.println( "The specified file size " + fileSizeString + " is illegal" );
+      multiplier = 1048576L;
     }
-    System.out.println( "Allocating " + fileSizeString + " bytes to " + filePath );
+    else if( sizeString.endsWith( "G" ) )
+    {
+      multiplier = 1073741824L;
+    }
+    String numberString = ( multiplier == 1L ) ? sizeString : sizeString.substring( 0, sizeString.length() - 1 );
 
-    // Pad the file out to the desired size by writing zeros to it.
+    long size;
     try
     {
-      FileOutputStream fileWriter = new FileOutputStream( file );
-      for( int i = 0; i < fileSize; i++ )
-      {
-        fileWriter.write( 0 );
-      }
-      fileWriter.close();
+      size = Math.multiplyExact( Long.parseLong( numberString ), multiplier );
     }
-    catch( IOException ioe )
+    catch( ArithmeticException ae )
     {
-      System.out.println( "Caught exception writing to new file " +  ioe );
+      throw new NumberFormatException( "The size " + sizeString + " is too large" );
     }
-    System.out.println( "File " + filePath + " is now ready for formatting" );
+    if( size <= 0 )
+    {
+      throw new NumberFormatException( "The size " + sizeString + " must be positive" );
+    }
+    return size;
   }
 }
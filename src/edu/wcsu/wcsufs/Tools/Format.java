@@ -1,25 +1,65 @@
 package edu.wcsu.wcsufs.Tools;
 
+import edu.wcsu.wcsufs.Devices.BlockDevice;
+import edu.wcsu.wcsufs.Devices.MappedBlockDevice;
 import edu.wcsu.wcsufs.Exceptions.CreateDirectoryEntryException;
 import edu.wcsu.wcsufs.FSDataStructures.*;
 import edu.wcsu.wcsufs.Writers.*;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 public class Format
 {
+  // Constants
+  // The number of blocks written by each large write when the INode table and data region are zeroed.
+  public static final int BLOCKS_PER_WRITE = 256;
+
+  // The default size of a block group: as many blocks as one block of Node Map can cover.
+  public static final int DEFAULT_BLOCKS_PER_GROUP = 8 * FSConstants.BLOCK_SIZE;
+
   public static void main( String[] args )
   {
-    // Sanity check
-    if( args.length !=  1 )
+    // The possible options are --lazy-init, --block-groups, --blocks-per-group and --extents
+    Options formatOptions = new Options();
+    formatOptions.addOption( Option.builder().longOpt( "lazy-init" ).desc( "only write the first INode block; the rest of the INode table is initialized after mount" ).build() );
+    formatOptions.addOption( Option.builder().longOpt( "block-groups" ).desc( "divide the file system into block groups, each with its own Node Maps, INodes and data blocks" ).build() );
+    formatOptions.addOption( Option.builder().longOpt( "blocks-per-group" ).hasArg().argName( "N" ).desc( "the number of blocks in a block group; implies --block-groups" ).build() );
+    formatOptions.addOption( Option.builder().longOpt( "extents" ).desc( "map new files by extents rather than block by block" ).build() );
+
+    List<String> remainingArguments = null;
+    boolean      lazyInit           = false;
+    int          blocksPerGroup     = 0;
+    boolean      extents            = false;
+    try
     {
-      System.out.println( "usage: Format filePath" );
+      CommandLine commandLine = new DefaultParser().parse( formatOptions, args );
+      if( commandLine.hasOption( "lazy-init" ) ) lazyInit = true;
+      if( commandLine.hasOption( "block-groups" ) ) blocksPerGroup = DEFAULT_BLOCKS_PER_GROUP;
+      if( commandLine.hasOption( "blocks-per-group" ) ) blocksPerGroup = Integer.parseInt( commandLine.getOptionValue( "blocks-per-group" ) );
+      if( commandLine.hasOption( "extents" ) ) extents = true;
+      remainingArguments = commandLine.getArgList();
+    }
+    catch( ParseException | NumberFormatException e )
+    {
+      System.out.println( e.getMessage() );
+    }
+
+    // Sanity check.  A group's Node Maps must each fit in one block.
+    if( remainingArguments == null || remainingArguments.size() !=  1 || blocksPerGroup < 0 || blocksPerGroup > DEFAULT_BLOCKS_PER_GROUP )
+    {
+      System.out.println( "usage: Format [--lazy-init] [--block-groups] [--blocks-per-group N] [--extents] filePath" );
       System.exit( 1 );
     }
 
-    String filePath = args[0];
+    String filePath = remainingArguments.get( 0 );
     File  file = new File( filePath );
 
     // Sanity check: make sure the file exists
@@ -33,177 +73,132 @@ public class Format
     System.out.println( "This will erase all contents of the file" );
 
     // Get the size of the file
-    int fileSize = (int)file.length();
-
-    // Calculate the number of blocks
-    int numberOfBlocks = fileSize / FSConstants.BLOCK_SIZE;
-    System.out.println( "Number of blocks = "  + numberOfBlocks );
-
-    // We will allocate one-tenth this number of inodes
-    int numberOfINodes = numberOfBlocks / 10;
+    long fileSize = file.length();
 
-    // We can pack up to 128 INodes in a single block, so round up to the nearest multiple of 128.
-    numberOfINodes = ((FSConstants.INODES_PER_BLOCK + numberOfINodes - 1)/ FSConstants.INODES_PER_BLOCK) * FSConstants.INODES_PER_BLOCK;
-
-    // See how many blocks this represents
-    int numberOfINodeBlocks = (numberOfINodes * FSConstants.BYTES_PER_INODE) / FSConstants.BLOCK_SIZE;
-
-    // The number of data blocks is then the total number of blocks minus one for the super block, two for the Node Maps,
-    // and the number of INode blocks
-    int numberOfDataBlocks = numberOfBlocks - (1 + 2 + numberOfINodeBlocks );
-    System.out.println( "Number of data blocks is " + numberOfDataBlocks );
-
-    // The address of the INode Map is always 1.
-    int addressOfINodeMap = 1;
-
-    // The address of the data node map is always 2.
-    int addressOfDataBlockMap = 2;
-
-    // The address of the first INode block is always 3
-    int addressOfFirstINode = 3;
-
-    //  The address of the first data block is 3 + the number of INode blocks
-    int addressOfFirstDataBlock = 3 + numberOfINodeBlocks;
-
-    // Open a Random Access File
-    RandomAccessFile outputFile = null;
-    try
+    // Calculate the number of blocks.  Block numbers are 32 bits.
+    if( fileSize / FSConstants.BLOCK_SIZE > Integer.MAX_VALUE )
     {
-      outputFile = new RandomAccessFile( file, "rw" );
-    }
-    catch( IOException ioe )
-    {
-      System.out.println( "Caught exception opening random access file" );
-      System.exit( 3 );
+      System.out.println( "The file is too large: at most " + (long)Integer.MAX_VALUE * FSConstants.BLOCK_SIZE + " bytes can be formatted" );
+      System.exit( 5 );
     }
+    int numberOfBlocks = (int)( fileSize / FSConstants.BLOCK_SIZE );
+    System.out.println( "Number of blocks = "  + numberOfBlocks );
 
     // Make up the Super Block
     SuperBlock superblock = new SuperBlock();
     superblock.setMagic( SuperBlock.MAGIC );
-    superblock.setNumberOfINodes( numberOfINodes );
-    superblock.setNumberOfDataBlocks( numberOfDataBlocks );
-    superblock.setAddressOfINodeMap( addressOfINodeMap );
-    superblock.setAddressOfDataBlockMap( addressOfDataBlockMap );
-    superblock.setAddressOfFirstInode( addressOfFirstINode );
-    superblock.setAddressOfFirstDataBlock( addressOfFirstDataBlock );
     superblock.setTotalBlocks( numberOfBlocks );
+    superblock.setAddressOfINodeMap( 1 );
 
-    try
+    if( blocksPerGroup == 0 )
     {
-      WriteSuperBlock.write( outputFile, superblock );
+      layOut( superblock, numberOfBlocks );
     }
-    catch( IOException ioe )
+    else if( !layOutBlockGroups( superblock, numberOfBlocks, blocksPerGroup ) )
     {
-      System.out.println( "Caught exception writing super block" );
+      System.out.println( "The file is too small for a block group of " + blocksPerGroup + " blocks" );
+      System.exit( 4 );
     }
 
-    // Create a new INodeMap
-    NodeMap INodeMap = new NodeMap( NodeMapType.INodeMap, numberOfINodes );
-
-    // Jump to the start of the INode Map
-    try
-    {
-      outputFile.seek( FSConstants.BLOCK_SIZE );
-    }
-    catch( IOException ioe )
+    int numberOfINodes      = superblock.getNumberOfINodes();
+    int numberOfDataBlocks  = superblock.getNumberOfDataBlocks();
+    int numberOfINodeBlocks = numberOfINodes / superblock.getINodesPerBlock();
+    System.out.println( "Number of data blocks is " + numberOfDataBlocks );
+    if( superblock.hasBlockGroups() )
     {
-      System.out.println( "Caught exception jumping to the beginning of the INode Map: " + ioe );
-      System.exit( 4 );
+      System.out.println( "Number of block groups is " + superblock.getNumberOfGroups() );
     }
 
-    // Write out the INode Map
+    // Map the file
+    BlockDevice outputDevice = null;
     try
     {
-      WriteNodeMap.write( outputFile, INodeMap );
+      outputDevice = new MappedBlockDevice( file );
     }
     catch( IOException ioe )
     {
-      System.out.println( "Caught Exception writing INode Map: " + ioe );
-      System.exit( 5 );
+      System.out.println( "Caught exception mapping the file" );
+      System.exit( 3 );
     }
 
-    // Create a new Data Block Map
-    NodeMap dataBlockMap = new NodeMap( NodeMapType.DataBlockMap, numberOfDataBlocks );
-
-    // Jump to the start of the Data Block Map
-    try
-    {
-      outputFile.seek( 2*FSConstants.BLOCK_SIZE );
-    }
-    catch( IOException ioe )
+    if( extents )
     {
-      System.out.println( "Caught exception jumping to the beginning of the Data Block Map: " + ioe );
-      System.exit( 6 );
+      superblock.setFlags( superblock.getFlags() | SuperBlock.EXTENTS );
     }
 
-    // Write out the Data Block Map
-    try
+    // With lazy initialization only the INode block holding the root is written here
+    if( lazyInit )
     {
-      WriteNodeMap.write( outputFile, dataBlockMap );
+      superblock.setFlags( superblock.getFlags() | SuperBlock.INODE_TABLE_UNINITIALIZED );
+      superblock.setNumberOfInitializedINodeBlocks( 1 );
     }
-    catch( IOException ioe )
+    else
     {
-      System.out.println( "Caught Exception writing Data Blck Map: " + ioe );
-      System.exit( 7 );
+      superblock.setNumberOfInitializedINodeBlocks( numberOfINodeBlocks );
     }
 
-    // Write out the INodes
-    // Jump to the start of the INodes
     try
     {
-      outputFile.seek( 3*FSConstants.BLOCK_SIZE );
+      WriteSuperBlock.write( outputDevice, superblock );
     }
     catch( IOException ioe )
     {
-      System.out.println( "Caught exception jumping to the beginning of the INodes: " + ioe );
-      System.exit( 8 );
+      System.out.println( "Caught exception writing super block" );
     }
 
-    // Create a blank INode
-    INode blankINode = new INode( 0 );
-
-    // Write it out for each of the needed INodes
-    for( int i = 0; i < numberOfINodes; i++ )
+    // Write out the INodes and the data blocks in large writes.
+    // Neither is needed for a lazy initialization: data blocks are always written in full when they are allocated.
+    if( !lazyInit )
     {
-      try
-      {
-        WriteINode.write( outputFile, blankINode );
-      }
-      catch( IOException ioe )
+      // Make up a large buffer of blank INodes
+      ByteBuffer blankINodes = ByteBuffer.allocateDirect( BLOCKS_PER_WRITE * FSConstants.BLOCK_SIZE );
+      INode blankINode = new INode( 0 );
+      while( blankINodes.hasRemaining() )
       {
-        System.out.println( "Caught exception writing INode " + i + ": "  + ioe );
-        System.exit( 9 );
+        WriteINode.encode( blankINodes, blankINode, superblock.getVersion() );
       }
-    }
 
-    // We should be at the start of the data blocks, so no seek is required.
+      // And a large buffer of blank data blocks
+      ByteBuffer blankDataBlocks = ByteBuffer.allocateDirect( BLOCKS_PER_WRITE * FSConstants.BLOCK_SIZE );
 
-    // Make up a dummy Data Block
-    DataBlock blankDataBlock = new DataBlock();
-    for( int i = 0; i < numberOfDataBlocks; i++ )
-    {
-      try
-      {
-        WriteDataBlock.write( outputFile, blankDataBlock );
-      }
-      catch( IOException ioe )
+      // Each block group has its own part of the INode table and of the data region
+      for( int group = 0; group < superblock.getNumberOfGroups(); group++ )
       {
-        System.out.println( "Caught exception writing data block " + i + ": " + ioe );
-        System.exit( 10 );
+        int firstINodeBlock = group * superblock.getINodeBlocksPerGroup();
+        try
+        {
+          writeRegion( outputDevice, superblock.getAddressOfINodeBlock( firstINodeBlock ), superblock.getINodeBlocksPerGroup(), blankINodes );
+        }
+        catch( IOException ioe )
+        {
+          System.out.println( "Caught exception writing INode table: "  + ioe );
+          System.exit( 9 );
+        }
+
+        int firstDataBlock = superblock.getFirstDataBlockOfGroup( group );
+        int dataBlocksInGroup = Math.min( superblock.getDataBlocksPerGroup(), numberOfDataBlocks - firstDataBlock );
+        try
+        {
+          writeRegion( outputDevice, superblock.getAddressOfDataBlock( firstDataBlock ), dataBlocksInGroup, blankDataBlocks );
+        }
+        catch( IOException ioe )
+        {
+          System.out.println( "Caught exception writing data region: " + ioe );
+          System.exit( 10 );
+        }
       }
     }
 
     // Finally, create the root directory.
-    // Allocate INode 0 and the first data block
+    // Allocate INode 0 and the first data block, then write out each map once
+    NodeMap INodeMap = new NodeMap( NodeMapType.INodeMap, numberOfINodes );
+    NodeMap dataBlockMap = new NodeMap( NodeMapType.DataBlockMap, numberOfDataBlocks );
     INodeMap.setNodeAllocation( true, 0 );
     dataBlockMap.setNodeAllocation( true, 0 );
     try
     {
-      outputFile.seek( 1* FSConstants.BLOCK_SIZE );
-      WriteNodeMap.write( outputFile, INodeMap );
-
-      outputFile.seek( 2* FSConstants.BLOCK_SIZE );
-      WriteNodeMap.write( outputFile, dataBlockMap );
+      WriteNodeMap.write( outputDevice, superblock, INodeMap );
+      WriteNodeMap.write( outputDevice, superblock, dataBlockMap );
     }
     catch( IOException ioe )
     {
@@ -217,13 +212,26 @@ public class Format
     rootINode.setNumberOfLinks( 0 );
     rootINode.setFileSize( FSConstants.BLOCK_SIZE );
     rootINode.setType( INodeType.Directory );
-    rootINode.addDirectPointer( addressOfFirstDataBlock );
+    rootINode.addDirectPointer( superblock.getAddressOfDataBlock( 0 ) );
     rootINode.setAllocatedBlocks( 1 );
 
     try
     {
-      outputFile.seek( 3 * FSConstants.BLOCK_SIZE );
-      WriteINode.write( outputFile, rootINode );
+      if( lazyInit )
+      {
+        // Write out the root with the rest of its block
+        INode[] firstINodes = new INode[ superblock.getINodesPerBlock() ];
+        firstINodes[0] = rootINode;
+        for( int i = 1; i < firstINodes.length; i++ )
+        {
+          firstINodes[i] = new INode( i );
+        }
+        WriteINode.writeBlock( outputDevice, superblock, 0, firstINodes, ByteBuffer.allocate( FSConstants.BLOCK_SIZE ) );
+      }
+      else
+      {
+        WriteINode.write( outputDevice, superblock, rootINode );
+      }
     }
     catch( IOException ioe )
     {
@@ -237,9 +245,8 @@ public class Format
     {
       if( rootDataBlock.createDirectoryEntry( 0, "." ) )
       {
-        System.out.println( "Writing root data block with entries " + rootDataBlock.getDirectoryEntries() );
-        outputFile.seek( 4* FSConstants.BLOCK_SIZE );
-        WriteDirectoryBlock.write( outputFile, rootDataBlock );
+        System.out.println( "Writing root data block with " + rootDataBlock.getNumberOfEntries() + " entries" );
+        WriteDirectoryBlock.write( outputDevice, superblock.getAddressOfDataBlock( 0 ), rootDataBlock );
       }
     }
     catch( CreateDirectoryEntryException cdee )
@@ -255,14 +262,101 @@ public class Format
     // That's it!
     try
     {
-      outputFile.close();
+      outputDevice.close();
     }
     catch( IOException ioe )
     {
       System.out.println( "Caught exception closing file" );
     }
+  }
 
+  // The original layout: the super block, the INode map, the data block map, the INode table and then the data blocks.
+  private static void layOut( SuperBlock superblock, int numberOfBlocks )
+  {
+    // We will allocate one-tenth this number of inodes
+    int numberOfINodes = numberOfBlocks / 10;
+
+    // We can pack a whole number of INodes in a single block, so round up to the nearest multiple of that.
+    int INodesPerBlock = superblock.getINodesPerBlock();
+    numberOfINodes = ((INodesPerBlock + numberOfINodes - 1)/ INodesPerBlock) * INodesPerBlock;
+
+    // See how many blocks this represents
+    int numberOfINodeBlocks = numberOfINodes / INodesPerBlock;
+
+    // Each Node Map holds one bit per node, so one block covers 32768 nodes.
+    // The data block map is sized for everything that is left over, which may leave it a few bits to spare.
+    int numberOfINodeMapBlocks     = NodeMap.getNumberOfBlocks( numberOfINodes );
+    int numberOfDataBlockMapBlocks = NodeMap.getNumberOfBlocks( numberOfBlocks - ( 1 + numberOfINodeMapBlocks + numberOfINodeBlocks ) );
+
+    // The number of data blocks is then the total number of blocks minus one for the super block, the blocks of the Node Maps,
+    // and the number of INode blocks
+    int numberOfDataBlocks = numberOfBlocks - (1 + numberOfINodeMapBlocks + numberOfDataBlockMapBlocks + numberOfINodeBlocks );
+
+    // The data block map follows the INode map
+    int addressOfDataBlockMap = superblock.getAddressOfINodeMap() + numberOfINodeMapBlocks;
+
+    // The INode blocks follow the data block map
+    int addressOfFirstINode = addressOfDataBlockMap + numberOfDataBlockMapBlocks;
+
+    //  The first data block follows the INode blocks
+    int addressOfFirstDataBlock = addressOfFirstINode + numberOfINodeBlocks;
 
+    superblock.setNumberOfINodes( numberOfINodes );
+    superblock.setNumberOfDataBlocks( numberOfDataBlocks );
+    superblock.setAddressOfDataBlockMap( addressOfDataBlockMap );
+    superblock.setAddressOfFirstInode( addressOfFirstINode );
+    superblock.setAddressOfFirstDataBlock( addressOfFirstDataBlock );
+    superblock.setNumberOfINodeMapBlocks( numberOfINodeMapBlocks );
+    superblock.setNumberOfDataBlockMapBlocks( numberOfDataBlockMapBlocks );
+  }
 
+  // The block group layout: the super block, then groups of blocksPerGroup blocks, each with one block of
+  // INode map, one block of data block map, its INode blocks and its data blocks.
+  // Returns false if there is not room for a single group.
+  private static boolean layOutBlockGroups( SuperBlock superblock, int numberOfBlocks, int blocksPerGroup )
+  {
+    // One-tenth as many INodes as blocks again, rounded up to whole INode blocks
+    int INodesPerBlock = superblock.getINodesPerBlock();
+    int INodesPerGroup = ( ( INodesPerBlock + blocksPerGroup / 10 - 1 ) / INodesPerBlock ) * INodesPerBlock;
+    int INodeBlocksPerGroup = INodesPerGroup / INodesPerBlock;
+
+    // The data blocks of a group come in multiples of 64, so that each group's part of the data block map is whole words.
+    int dataBlocksPerGroup = ( ( blocksPerGroup - 2 - INodeBlocksPerGroup ) / 64 ) * 64;
+    if( dataBlocksPerGroup <= 0 ) return false;
+
+    // The last group may be cut short; it is only used if it still has room for some data blocks
+    int numberOfFullGroups   = ( numberOfBlocks - 1 ) / blocksPerGroup;
+    int blocksInLastGroup    = ( numberOfBlocks - 1 ) % blocksPerGroup;
+    int dataBlocksInLastGroup = Math.max( 0, ( ( blocksInLastGroup - 2 - INodeBlocksPerGroup ) / 64 ) * 64 );
+    int numberOfGroups       = numberOfFullGroups + ( ( dataBlocksInLastGroup > 0 ) ? 1 : 0 );
+    if( numberOfGroups == 0 ) return false;
+
+    superblock.setFlags( superblock.getFlags() | SuperBlock.BLOCK_GROUPS );
+    superblock.setBlocksPerGroup( blocksPerGroup );
+    superblock.setINodesPerGroup( INodesPerGroup );
+    superblock.setDataBlocksPerGroup( dataBlocksPerGroup );
+    superblock.setNumberOfINodes( numberOfGroups * INodesPerGroup );
+    superblock.setNumberOfDataBlocks( numberOfFullGroups * dataBlocksPerGroup + dataBlocksInLastGroup );
+
+    // The addresses in the super block are those of the first group
+    superblock.setAddressOfDataBlockMap( superblock.getAddressOfNodeMap( NodeMapType.DataBlockMap, 0 ) );
+    superblock.setAddressOfFirstInode( superblock.getAddressOfINodeBlock( 0 ) );
+    superblock.setAddressOfFirstDataBlock( superblock.getAddressOfDataBlock( 0 ) );
+    superblock.setNumberOfINodeMapBlocks( 1 );
+    superblock.setNumberOfDataBlockMapBlocks( 1 );
+
+    return true;
+  }
+
+  // Write numberOfBlocks blocks starting at firstBlock by repeating the contents of chunk, which holds whole blocks.
+  private static void writeRegion( BlockDevice device, int firstBlock, int numberOfBlocks, ByteBuffer chunk ) throws IOException
+  {
+    int blocksPerChunk = chunk.capacity() / FSConstants.BLOCK_SIZE;
+    for( int written = 0; written < numberOfBlocks; written += blocksPerChunk )
+    {
+      chunk.clear();
+      chunk.limit( Math.min( blocksPerChunk, numberOfBlocks - written ) * FSConstants.BLOCK_SIZE );
+      device.writeBlock( firstBlock + written, chunk );
+    }
   }
 }
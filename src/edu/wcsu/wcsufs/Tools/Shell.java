@@ -1,42 +1,86 @@
 package edu.wcsu.wcsufs.Tools;
 
+import edu.wcsu.wcsufs.Cache.BlockCache;
+import edu.wcsu.wcsufs.Cache.BlockMap;
+import edu.wcsu.wcsufs.Cache.PathCache;
+import edu.wcsu.wcsufs.Devices.BlockDevice;
+import edu.wcsu.wcsufs.Devices.MappedBlockDevice;
 import edu.wcsu.wcsufs.Exceptions.*;
 import edu.wcsu.wcsufs.FSDataStructures.*;
 import edu.wcsu.wcsufs.FSDataStructures.FileDescriptor;
 import edu.wcsu.wcsufs.Readers.ReadINode;
 import edu.wcsu.wcsufs.Readers.ReadNodeMap;
 import edu.wcsu.wcsufs.Readers.ReadSuperBlock;
+import edu.wcsu.wcsufs.Writers.BlockMapWriter;
+import edu.wcsu.wcsufs.Writers.INodeTableInitializer;
 import edu.wcsu.wcsufs.Writers.WriteDataBlock;
+import edu.wcsu.wcsufs.Writers.WriteDirectoryBlock;
 import edu.wcsu.wcsufs.Writers.WriteINode;
 import edu.wcsu.wcsufs.Writers.WriteNodeMap;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 public class Shell
 {
 
   // Member variables
-  private RandomAccessFile inputFile = null;
+  private BlockDevice device = null;
   private SuperBlock  superBlock;
   private NodeMap     INodeMap;
   private NodeMap     dataBlockMap;
   private INode[]     INodes;
-  private DataBlock[] dataBlocks;
+
+  // For each INode, the directory that holds an entry for it and the name of that entry, as far as they are known.
+  // This is filled in as directories are read and kept up to date by mkdir, import and rm.
+  private int[]       parentINodeNumbers;
+  private String[]    entryNames;
+  private BlockCache  blockCache;
+  private BlockMap    blockMap;
+
+  // Only used when the INode table was left uninitialized by Format
+  private INodeTableInitializer INodeInitializer  = null;
+  private Thread                initializerThread = null;
+
+  // Name indexes of recently used directories, built on first use and kept up to date by mkdir, import and rm
+  private LinkedHashMap<Integer, DirectoryIndex> directoryIndexes;
+
+  // Paths resolved by findINode, including ones that did not resolve
+  private PathCache pathCache;
+
+  // Reused for reading whole blocks of INodes
+  private final ByteBuffer INodeBuffer = ByteBuffer.allocate( FSConstants.BLOCK_SIZE );
+
+  // Reused by import to move the file onto the device; allocated on first use
+  private ByteBuffer importBuffer = null;
+
+  // Zeros written over the blocks rm frees; allocated on first use
+  private ByteBuffer zeroBuffer = null;
+
+  // How much of the INode and DataBlock maps has been written back since mount
+  private long nodeMapBytesWritten = 0;
+
+  // How much of the directory blocks has been written back since mount
+  private long directoryBytesWritten = 0;
 
   private int numberOfINodes;
   private int numberOfDataBlocks;
   private int addressOfFirstDataBlock;
-  private int addressOfFirstINode;
-  private int addressOfINodeMap;
-  private int addressOfDataBlockMap;
 
   // This is the INode of the current directory
   private INode currentDirectory = null;
@@ -50,16 +94,32 @@ public class Shell
   // These variables are used to control the interactive shell
   private volatile boolean moribund = false;
 
-  public void mount( File wcsuFile ) throws IncorrectMagicException, IOException
+  // Constants
+  public static final long DEFAULT_CACHE_SIZE = 32 * 1048576;
+  public static final int  MAX_DIRECTORY_INDEXES = 1024;
+  public static final int  MAX_CACHED_PATHS      = 4096;
+  public static final int  IMPORT_BUFFER_BLOCKS  = 256;
+  public static final int  ZERO_BUFFER_BLOCKS    = 64;
+
+  public void mount( File wcsuFile ) throws IncorrectMagicException, UnsupportedVersionException, NotADirectoryException, IOException
   {
-    // Create the input file
-    inputFile = new RandomAccessFile( wcsuFile, "rw" );
+    mount( wcsuFile, false, DEFAULT_CACHE_SIZE );
+  }
+
+  // In a lazy mount only the super block and the two Node Maps are read up front; INodes and data blocks are
+  // read in on first access through getINode() and the get...Block() methods.
+  // The cache size is the number of bytes of data blocks that are kept in memory.
+  public void mount( File wcsuFile, boolean lazy, long cacheSize ) throws IncorrectMagicException, UnsupportedVersionException, NotADirectoryException, IOException
+  {
+    // Map the file
+    device = new MappedBlockDevice( wcsuFile );
 
     // Read the super block
-    SuperBlock superBlock = ReadSuperBlock.read( inputFile );
+    superBlock = ReadSuperBlock.read( device );
 
     /*
     System.out.println( "Read Super Block" );
+    System.out.println( "\tVersion = "                     + superBlock.getVersion()                 );
     System.out.println( "\tNumber of INodes = "            + superBlock.getNumberOfINodes()          );
     System.out.println( "\tNumber of Data Blocks = "       + superBlock.getNumberOfDataBlocks()      );
     System.out.println( "\tAddress of INode Map = "        + superBlock.getAddressOfINodeMap()       );
@@ -67,216 +127,469 @@ public class Shell
     System.out.println( "\tAddress of first INode = "      + superBlock.getAddressOfFirstInode()     );
     System.out.println( "\tAddress of first Data Block = " + superBlock.getAddressOfFirstDataBlock() );
     System.out.println( "\tTotal blocks = "                + superBlock.getTotalBlocks()             );
+    System.out.println( "\tINode Map blocks = "            + superBlock.getNumberOfINodeMapBlocks()     );
+    System.out.println( "\tData Block Map blocks = "       + superBlock.getNumberOfDataBlockMapBlocks() );
     */
     addressOfFirstDataBlock = superBlock.getAddressOfFirstDataBlock();
-    addressOfFirstINode     = superBlock.getAddressOfFirstInode();
-    addressOfINodeMap       = superBlock.getAddressOfINodeMap();
-    addressOfDataBlockMap   = superBlock.getAddressOfDataBlockMap();
 
     // Read the Node Maps
     // INode map first
-    inputFile.seek( addressOfINodeMap * FSConstants.BLOCK_SIZE );
     numberOfINodes = superBlock.getNumberOfINodes();
-    INodeMap = ReadNodeMap.read( inputFile, NodeMapType.INodeMap, numberOfINodes );
+    INodeMap = ReadNodeMap.read( device, superBlock, NodeMapType.INodeMap );
     //System.out.println( "Read INode Map"  );
    //System.out.println( "\tfirst unallocated INode is " + INodeMap.getNodeMap().nextClearBit( 0 ) );
 
     // Now DataBlock Map
-    inputFile.seek( addressOfDataBlockMap * FSConstants.BLOCK_SIZE );
     numberOfDataBlocks = superBlock.getNumberOfDataBlocks();
-    dataBlockMap = ReadNodeMap.read( inputFile, NodeMapType.DataBlockMap, numberOfDataBlocks );
+    dataBlockMap = ReadNodeMap.read( device, superBlock, NodeMapType.DataBlockMap );
     //System.out.println( "Read Data Block Map"  );
     //System.out.println( "\tfirst unallocated DataBlock is " + dataBlockMap.getNodeMap().nextClearBit( 0 ) );
 
-    // Read the INodes
-    INodes = new INode[ numberOfINodes ];
-    for( int i = 0; i < numberOfINodes; i++ )
+    // The INodes are read on demand, the data blocks through the block cache.
+    INodes     = new INode[ numberOfINodes ];
+
+    parentINodeNumbers = new int[ numberOfINodes ];
+    entryNames         = new String[ numberOfINodes ];
+    Arrays.fill( parentINodeNumbers, -1 );
+    blockCache = new BlockCache( device, addressOfFirstDataBlock, cacheSize );
+    blockMap   = new BlockMap( blockCache, addressOfFirstDataBlock );
+
+    // Access order, so that the least recently used directory index is dropped first
+    directoryIndexes = new LinkedHashMap<Integer, DirectoryIndex>( 16, 0.75f, true )
     {
-      if( INodeMap.getNodeMap().get( i ) )
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<Integer, DirectoryIndex> eldest )
       {
-        int INodeAddress = addressOfFirstINode * FSConstants.BLOCK_SIZE + i*FSConstants.BYTES_PER_INODE;
-        inputFile.seek( INodeAddress );
-        INodes[i] = ReadINode.read( inputFile, i );
+        return size() > MAX_DIRECTORY_INDEXES;
       }
-      else
+    };
+    pathCache = new PathCache( MAX_CACHED_PATHS );
+
+    // Finish off the INode table in the background if Format did not write all of it
+    int numberOfINodeBlocks = ( numberOfINodes + superBlock.getINodesPerBlock() - 1 ) / superBlock.getINodesPerBlock();
+    if( !superBlock.isINodeTableInitialized() )
+    {
+      INodeInitializer  = new INodeTableInitializer( device, superBlock, numberOfINodeBlocks );
+      initializerThread = new Thread( INodeInitializer, "INodeTableInitializer" );
+      initializerThread.setDaemon( true );
+      initializerThread.start();
+    }
+
+    if( !lazy )
+    {
+      // Read the INode table sequentially, a block at a time, skipping blocks without any allocated INodes.
+      for( int i = 0; i < numberOfINodeBlocks; i++ )
+      {
+        readINodeBlock( i );
+      }
+
+      // Now warm the cache, stopping as soon as it is full: reading on would only push out what was read before.
+      // Directories come first, since indexing one reads all of its blocks and records it as the parent of its entries.
+      BitSet allocatedINodes = INodeMap.getNodeMap();
+      for( int i = allocatedINodes.nextSetBit( 0 ); i >= 0 && i < numberOfINodes && !blockCache.isFull(); i = allocatedINodes.nextSetBit( i + 1 ) )
+      {
+        INode inode = getINode( i );
+        if( inode.getType() == INodeType.Directory )
+        {
+          getDirectoryIndex( inode );
+        }
+      }
+
+      // Then the data blocks of files, with whatever room is left
+      for( int i = allocatedINodes.nextSetBit( 0 ); i >= 0 && i < numberOfINodes && !blockCache.isFull(); i = allocatedINodes.nextSetBit( i + 1 ) )
       {
-        INodes[i] = new INode( i );
+        INode inode = getINode( i );
+        if( inode.getType() == INodeType.File )
+        {
+          blockMap.walk( inode, ( pointer, level ) ->
+          {
+            if( level == BlockMap.DATA_BLOCK && isDataBlockPointer( pointer ) ) getDataBlock( pointer );
+            return !blockCache.isFull();
+          } );
+        }
       }
     }
 
-    // Read the allocated Data Blocks
-    dataBlocks = new DataBlock[ numberOfDataBlocks ];
-    for( int i = 0; i < numberOfDataBlocks; i++ )
+    // That's it! We are mounted!
+    // Now just set the current directory to be '/'
+    currentDirectory = getINode( 0 );
+  }
+
+  // On-demand access to INodes and data blocks
+  private INode getINode( int INodeNumber ) throws IOException
+  {
+    INode inode = INodes[ INodeNumber ];
+    if( inode == null )
     {
-      dataBlocks[i] = null;
+      if( INodeMap.getNodeMap().get( INodeNumber ) )
+      {
+        // Read in the whole block, since its neighbours are likely to be needed as well.
+        readINodeBlock( INodeNumber / superBlock.getINodesPerBlock() );
+        inode = INodes[ INodeNumber ];
+      }
+      else
+      {
+        inode = new INode( INodeNumber );
+        INodes[ INodeNumber ] = inode;
+      }
     }
+    return inode;
+  }
+
+  // Fill in the allocated INodes of one INode block that have not been read yet.
+  // Nothing is read if none of the INodes in the block are allocated.
+  private void readINodeBlock( int INodeBlockNumber ) throws IOException
+  {
+    BitSet allocatedINodes  = INodeMap.getNodeMap();
+    int    firstINodeNumber = INodeBlockNumber * superBlock.getINodesPerBlock();
+    int    lastINodeNumber  = Math.min( firstINodeNumber + superBlock.getINodesPerBlock(), numberOfINodes );
+
+    int firstAllocated = allocatedINodes.nextSetBit( firstINodeNumber );
+    if( firstAllocated < 0 || firstAllocated >= lastINodeNumber ) return;
 
-    // Make a temporary array for reading in the data.
-    byte[] temp = new byte[ FSConstants.BLOCK_SIZE ];
+    // A block that was never initialized cannot hold any INodes
+    if( INodeInitializer != null && !INodeInitializer.isInitialized( INodeBlockNumber ) ) return;
 
-    for( INode inode : INodes )
+    INode[] blockINodes = ReadINode.readBlock( device, superBlock, INodeBlockNumber, INodeBuffer );
+    for( int i = firstINodeNumber; i < lastINodeNumber; i++ )
     {
-      if( inode.getType() == INodeType.Unused )
+      if( INodes[i] == null && allocatedINodes.get( i ) )
       {
-        continue;
+        INodes[i] = blockINodes[ i - firstINodeNumber ];
       }
+    }
+  }
+
+  // An INode may only be written once the block of the INode table that holds it has been initialized
+  private void initializeINodeBlockFor( int INodeNumber ) throws IOException
+  {
+    if( INodeInitializer != null )
+    {
+      INodeInitializer.ensureInitialized( INodeNumber / superBlock.getINodesPerBlock() );
+    }
+  }
+
+  // The name index of a directory, built from its data blocks the first time it is needed
+  private DirectoryIndex getDirectoryIndex( INode directoryINode ) throws NotADirectoryException, IOException
+  {
+    DirectoryIndex directoryIndex = directoryIndexes.get( directoryINode.getINodeNumber() );
+    if( directoryIndex != null )
+    {
+      return directoryIndex;
+    }
+
+    // Sanity check
+    if( directoryINode.getType() != INodeType.Directory )
+    {
+      throw new NotADirectoryException( "The given INode " + directoryINode.getINodeNumber() + " is not a directory! ");
+    }
+
+    directoryIndex = new DirectoryIndex( directoryINode.getINodeNumber() );
+
+    final DirectoryIndex index = directoryIndex;
+    blockMap.walk( directoryINode, ( pointer, level ) ->
+    {
+      if( level == BlockMap.DATA_BLOCK ) addToDirectoryIndex( index, pointer );
+      return true;
+    } );
+
+    directoryIndexes.put( directoryINode.getINodeNumber(), directoryIndex );
+    return directoryIndex;
+  }
 
-      if( inode.getType() == INodeType.Directory )
+  private void addToDirectoryIndex( DirectoryIndex directoryIndex, int directoryBlockPointer ) throws IOException
+  {
+    DirectoryDataBlock dataBlock = getDirectoryBlock( directoryBlockPointer );
+    for( int entry = dataBlock.getFirstEntry(); entry != DirectoryDataBlock.NO_ENTRY; entry = dataBlock.getNextEntry( entry ) )
+    {
+      String name        = dataBlock.getName( entry );
+      int    INodeNumber = dataBlock.getINodeNumber( entry );
+      directoryIndex.addEntry( name, INodeNumber, directoryBlockPointer );
+      setParent( INodeNumber, directoryIndex.getINodeNumber(), name );
+    }
+    directoryIndex.addBlock( directoryBlockPointer, dataBlock.getLargestFreeSpace() );
+  }
+
+  // Remember where an INode is linked from. The "." and ".." entries do not name their INodes.
+  private void setParent( int INodeNumber, int parentINodeNumber, String name )
+  {
+    name = name.trim();
+    if( ".".equals( name ) || "..".equals( name ) ) return;
+    if( INodeNumber < 0 || INodeNumber >= numberOfINodes ) return;
+
+    parentINodeNumbers[ INodeNumber ] = parentINodeNumber;
+    entryNames[ INodeNumber ]         = name;
+  }
+
+  private void clearParent( int INodeNumber )
+  {
+    parentINodeNumbers[ INodeNumber ] = -1;
+    entryNames[ INodeNumber ]         = null;
+  }
+
+  // The absolute path of an INode, built by following the parent of each directory up to the root.
+  // A parent that is not known yet is found through "..", whose index then names all of its entries;
+  // a file is only known once the directory holding it has been indexed.
+  private String getPath( INode inode ) throws Exception
+  {
+    String fullPath  = "";
+    INode  directory = inode;
+
+    // The depth limit only guards against loops in a damaged file system
+    for( int depth = 0; directory.getINodeNumber() != 0 && depth < numberOfINodes; depth++ )
+    {
+      int INodeNumber = directory.getINodeNumber();
+      if( parentINodeNumbers[ INodeNumber ] < 0 )
       {
-        // Get the directory data blocks
-        int allocatedBlocks = inode.getAllocatedBlocks();
-        //System.out.println( "For this directory " + inode.getINodeNumber() + ", need to read " + allocatedBlocks + " block" );
+        if( directory.getType() != INodeType.Directory ) break;
 
-        // Sanity check
-        if( allocatedBlocks > 0 )
+        int parentINodeNumber = lookUpEntry( directory, ".." );
+        if( parentINodeNumber < 0 ) break;
+        getDirectoryIndex( getINode( parentINodeNumber ) );
+
+        // The parent's index may have been built before without recording us; fall back to scanning it.
+        if( parentINodeNumbers[ INodeNumber ] < 0 )
         {
-          // First get the direct data blocks
-          for( int dataBlockPointer : inode.getDirectPointers() )
+          for( FileDescriptor fileDescriptor : getDirectoryContents( getINode( parentINodeNumber ) ) )
           {
-            //System.out.println( "dataBlockPointer = " + dataBlockPointer );
-            int dataBlockIndex = dataBlockPointer - addressOfFirstDataBlock;
-            if( dataBlockIndex < 0 || dataBlockIndex >= numberOfDataBlocks ) continue;
-            //System.out.println( "dataBlockIndex = " + dataBlockIndex );
-
-            // Make sure this has not already been read in
-            if( dataBlocks[ dataBlockIndex ] != null )
+            if( fileDescriptor.getINodeNumber() == INodeNumber )
             {
-              continue;
+              setParent( INodeNumber, parentINodeNumber, fileDescriptor.getName() );
+              break;
             }
-
-            //System.out.println( "Reading in new DirectoryDataBlock for index " + dataBlockIndex );
-            DirectoryDataBlock dataBlock = new DirectoryDataBlock();
-            inputFile.seek(  dataBlockPointer  * FSConstants.BLOCK_SIZE );
-            inputFile.read( temp, 0, FSConstants.BLOCK_SIZE );
-            dataBlock.setData( temp );
-            dataBlocks[ dataBlockIndex ] = dataBlock;
           }
         }
+        if( parentINodeNumbers[ INodeNumber ] < 0 ) break;
+      }
 
-        int indirectPointer = inode.getIndirectPointer();
-        if( indirectPointer >= addressOfFirstDataBlock )
-        {
-          // Check that the data block for this has already be read in
-          DataBlock pointerBlock = null;
-          int indirectIndex = indirectPointer - addressOfFirstDataBlock;
-          if( dataBlocks[ indirectIndex ] == null )
-          {
-            // Need to read in this data block
-            inputFile.seek( indirectPointer * FSConstants.BLOCK_SIZE );
-            inputFile.read( temp, 0, FSConstants.BLOCK_SIZE );
-            pointerBlock = new DataBlock();
-            pointerBlock.setData( temp );
-            dataBlocks[ indirectIndex ] = pointerBlock;
-          }
-          else
-          {
-            pointerBlock = dataBlocks[ indirectIndex ];
-          }
+      fullPath  = "/" + entryNames[ INodeNumber ] + fullPath;
+      directory = getINode( parentINodeNumbers[ INodeNumber ] );
+    }
 
-          temp = pointerBlock.getData();
-          for( int i = 0; i < FSConstants.BLOCK_SIZE; i += 4 )
-          {
-            int dataBlockPointer = ByteBuffer.wrap( temp, i, 4 ).getInt();
-            if( dataBlockPointer < addressOfFirstDataBlock )
-            {
-              break;
-            }
+    // Check if we're actually at the root.
+    if( fullPath.length() == 0 )
+    {
+      fullPath = "/";
+    }
+    return fullPath;
+  }
 
-            int dataBlockIndex = dataBlockPointer - addressOfFirstDataBlock;
+  // Returns the INode number the named entry of a directory refers to, or -1 if there is no such entry
+  private int lookUpEntry( INode directoryINode, String name ) throws NotADirectoryException, IOException
+  {
+    DirectoryIndex.Entry entry = getDirectoryIndex( directoryINode ).getEntry( name );
+    return ( entry == null ) ? -1 : entry.getINodeNumber();
+  }
 
-            // See if this data block has already been read
-            if( dataBlocks[ dataBlockIndex ] != null )
-            {
-              continue;
-            }
+  // Called once an entry has been added to a directory.
+  // Only an index that has already been built needs updating; one built later will read the change from the blocks.
+  private void directoryEntryAdded( INode directoryINode, String name, int INodeNumber, int directoryBlockPointer )
+  {
+    DirectoryIndex directoryIndex = directoryIndexes.get( directoryINode.getINodeNumber() );
+    if( directoryIndex != null )
+    {
+      directoryIndex.addEntry( name, INodeNumber, directoryBlockPointer );
+    }
+    pathCache.invalidateDirectory( directoryINode.getINodeNumber() );
+    setParent( INodeNumber, directoryINode.getINodeNumber(), name );
+  }
 
-            byte[] newData = new byte[ FSConstants.BLOCK_SIZE ];
-            inputFile.seek( dataBlockPointer  * FSConstants.BLOCK_SIZE );
-            inputFile.read( newData, 0, FSConstants.BLOCK_SIZE );
-            DirectoryDataBlock newDataBlock = new DirectoryDataBlock();
-            newDataBlock.setData( newData );
-            dataBlocks[ dataBlockIndex ] = newDataBlock;
-          }
-        }
+  // Add an entry to a directory: into the first of its blocks with room for it, or else into a new block at the end
+  // of the directory, through the indirect blocks once the direct pointers are used up.
+  // The changed blocks, and the directory's INode if it grew, are written out straight away.
+  private void addDirectoryEntry( INode directoryINode, String name, int INodeNumber ) throws Exception
+  {
+    DirectoryIndex directoryIndex = getDirectoryIndex( directoryINode );
+    int            recordLength   = DirectoryDataBlock.getRecordLengthFor( DirectoryDataBlock.getNameBytes( name ).length );
+
+    int                                directoryBlockPointer = directoryIndex.findBlockWithSpace( recordLength );
+    DirectoryDataBlock                 directoryBlock;
+    Map<Integer, IndirectPointerBlock> changedIndirectBlocks = new LinkedHashMap<>();
+    boolean                            directoryGrew         = ( directoryBlockPointer < 0 );
+    if( !directoryGrew )
+    {
+      directoryBlock = getDirectoryBlock( directoryBlockPointer );
+      blockCache.pin( directoryBlockPointer );
+    }
+    else
+    {
+      // Every block is full, so the directory grows by a block, plus any indirect blocks it needs to map it
+      int numberOfBlocks = directoryIndex.getNumberOfBlocks();
+      if( numberOfBlocks >= superBlock.getMaximumNumberOfFileBlocks() )
+      {
+        throw new CreateDirectoryEntryException( "The directory is full" );
       }
-      else if( inode.getType() == INodeType.File )
+      int numberOfIndirectBlocks = BlockMap.getNumberOfIndirectBlocks( numberOfBlocks + 1 ) - BlockMap.getNumberOfIndirectBlocks( numberOfBlocks );
+
+      // Preferably next to the directory's previous block
+      int          lastBlockPointer = directoryIndex.getLastBlock();
+      List<Extent> newBlocks        = reserveDataBlocks( 1 + numberOfIndirectBlocks, isDataBlockPointer( lastBlockPointer ) ? superBlock.getDataBlockIndex( lastBlockPointer ) + 1 : -1 );
+      int[]        newPointers      = new int[ 1 + numberOfIndirectBlocks ];
+      int          next             = 0;
+      for( Extent run : newBlocks )
       {
-        // Get the data blocks
-        int allocatedBlocks = inode.getAllocatedBlocks();
-
-        // Sanity check
-        if( allocatedBlocks >= 0 )
+        for( int i = 0; i < run.getLength(); i++ )
         {
-          // First get the direct data blocks
-          for( int dataBlockPointer : inode.getDirectPointers() )
-          {
-            if( dataBlockPointer < addressOfFirstDataBlock ) continue;
-            int dataBlockIndex = dataBlockPointer - addressOfFirstDataBlock;
+          newPointers[ next++ ] = run.getStart() + i;
+        }
+      }
+      int[] indirectPointers = Arrays.copyOfRange( newPointers, 1, newPointers.length );
 
-            // Make sure this has not already been read in
-            if( dataBlocks[ dataBlockIndex ] != null )
-            {
-              continue;
-            }
+      directoryBlockPointer = newPointers[0];
+      directoryBlock        = new DirectoryDataBlock();
+      blockCache.put( directoryBlockPointer, directoryBlock, true );
 
-            DataBlock dataBlock = new DataBlock();
-            inputFile.seek(  dataBlockPointer * FSConstants.BLOCK_SIZE );
-            inputFile.read( temp, 0, FSConstants.BLOCK_SIZE );
-            dataBlock.setData( temp );
-            dataBlocks[ dataBlockIndex ] = dataBlock;
-          }
-        }
+      changedIndirectBlocks = blockMap.append( directoryINode, numberOfBlocks, directoryBlockPointer, indirectPointers );
+      directoryINode.setAllocatedBlocks( numberOfBlocks + 1 );
+      directoryINode.setFileSize( (long)( numberOfBlocks + 1 ) * FSConstants.BLOCK_SIZE );
+      directoryIndex.addBlock( directoryBlockPointer, directoryBlock.getLargestFreeSpace() );
+    }
 
-        int indirectPointer = inode.getIndirectPointer();
-        if( indirectPointer >= addressOfFirstDataBlock )
-        {
-          // Check that the data block for this has already be read in
-          DataBlock pointerBlock = null;
-          int indirectIndex = indirectPointer - addressOfFirstDataBlock;
-          if( dataBlocks[ indirectIndex ] == null )
-          {
-            // Need to read in this data block
-            inputFile.seek(  indirectPointer * FSConstants.BLOCK_SIZE );
-            inputFile.read( temp, 0, FSConstants.BLOCK_SIZE );
-            pointerBlock = new DataBlock();
-            pointerBlock.setData( temp );
-            dataBlocks[ indirectIndex] = pointerBlock;
-          }
-          else
-          {
-            pointerBlock = dataBlocks[ indirectIndex ];
-          }
+    //  The block has room for the entry, so this should always work
+    if( !directoryBlock.createDirectoryEntry( INodeNumber, name ) )
+    {
+      blockCache.unpin( directoryBlockPointer );
+      throw new CreateDirectoryEntryException( "Could not add " + name + " to block " + directoryBlockPointer );
+    }
+    directoryIndex.setFreeSpace( directoryBlockPointer, directoryBlock.getLargestFreeSpace() );
+    directoryEntryAdded( directoryINode, name, INodeNumber, directoryBlockPointer );
 
-          temp = pointerBlock.getData();
-          for( int i = 0; i < FSConstants.BLOCK_SIZE; i += 4 )
-          {
-            int dataBlockPointer = ByteBuffer.wrap( temp, i, 4 ).getInt();
-            if( dataBlockPointer < addressOfFirstDataBlock )
-            {
-              break;
-            }
+    // Write out the directory block, then the indirect blocks and the INode if the directory grew
+    directoryBytesWritten += WriteDirectoryBlock.writeDirty( device, directoryBlockPointer, directoryBlock );
+    blockCache.unpin( directoryBlockPointer );
+    for( Map.Entry<Integer, IndirectPointerBlock> indirectBlock : changedIndirectBlocks.entrySet() )
+    {
+      WriteDataBlock.write( device, indirectBlock.getKey(), indirectBlock.getValue() );
+      blockCache.unpin( indirectBlock.getKey() );
+    }
+    if( directoryGrew )
+    {
+      WriteINode.write( device, superBlock, directoryINode );
+    }
+  }
 
-            // See if this data block has already been read
-            int dataBlockIndex = dataBlockPointer - addressOfFirstDataBlock;
-            if( dataBlocks[ dataBlockIndex ] != null )
-            {
-              continue;
-            }
+  // Mark count free data blocks as allocated and return them as runs of blocks that follow on from each other on disk.
+  // A single run of count free blocks is used if there is one, as near the hint as possible; otherwise the blocks
+  // are taken one at a time.  A hint of -1 means no preference.
+  private List<Extent> reserveDataBlocks( int count, int hint ) throws OutOfDataBlocksException
+  {
+    List<Extent> reservedRuns = new ArrayList<>();
+    if( count == 0 ) return reservedRuns;
 
-            byte[] newData = new byte[ FSConstants.BLOCK_SIZE ];
-            inputFile.seek( dataBlockPointer * FSConstants.BLOCK_SIZE );
-            inputFile.read( newData, 0, FSConstants.BLOCK_SIZE );
-            DataBlock newDataBlock = new DataBlock();
-            newDataBlock.setData( newData );
-            dataBlocks[ dataBlockIndex] = newDataBlock;
-          }
+    int runStart = ( hint >= 0 ) ? dataBlockMap.allocateNear( hint, count ) : dataBlockMap.allocateContiguous( count );
+    if( runStart >= 0 )
+    {
+      for( int i = 0; i < count; i++ )
+      {
+        addToRuns( reservedRuns, superBlock.getAddressOfDataBlock( runStart + i ) );
+      }
+      return reservedRuns;
+    }
+
+    // No run is long enough, so follow on from each block as far as possible
+    int lastIndex = -1;
+    for( int i = 0; i < count; i++ )
+    {
+      int index;
+      if( i == 0 )
+      {
+        index = ( hint >= 0 ) ? dataBlockMap.allocateNear( hint, 1 ) : dataBlockMap.allocate();
+      }
+      else
+      {
+        index = dataBlockMap.allocateNear( lastIndex + 1, 1 );
+      }
+      if( index < 0 )
+      {
+        freeDataBlocks( reservedRuns, 0 );
+        throw new OutOfDataBlocksException( "There are no more unused data blocks" );
+      }
+      addToRuns( reservedRuns, superBlock.getAddressOfDataBlock( index ) );
+      lastIndex = index;
+    }
+    return reservedRuns;
+  }
+
+  // Add a block to the end of a list of runs, extending the last run if the block follows on from it
+  private static void addToRuns( List<Extent> runs, int pointer )
+  {
+    Extent lastRun = runs.isEmpty() ? null : runs.get( runs.size() - 1 );
+    if( lastRun != null && lastRun.getStart() + lastRun.getLength() == pointer )
+    {
+      runs.set( runs.size() - 1, new Extent( lastRun.getStart(), lastRun.getLength() + 1 ) );
+    }
+    else
+    {
+      runs.add( new Extent( pointer, 1 ) );
+    }
+  }
+
+  // Free the reserved blocks in the runs, apart from the first skip of them
+  private void freeDataBlocks( List<Extent> runs, long skip )
+  {
+    for( Extent run : runs )
+    {
+      for( int i = 0; i < run.getLength(); i++ )
+      {
+        if( skip > 0 )
+        {
+          skip--;
+          continue;
         }
+        dataBlockMap.setNodeAllocation( false, superBlock.getDataBlockIndex( run.getStart() + i ) );
       }
     }
+  }
 
-    // That's it! We are mounted!
-    // Now just set the current directory to be '/'
-    currentDirectory = INodes[0];
+  // Allocate one block for a directory, as close as possible after the given block pointer
+  private int allocateDirectoryBlockNear( int dataBlockPointer ) throws OutOfDataBlocksException
+  {
+    int dataBlockIndex = isDataBlockPointer( dataBlockPointer ) ? dataBlockMap.allocateNear( superBlock.getDataBlockIndex( dataBlockPointer ) + 1, 1 )
+                                                                : dataBlockMap.allocate();
+    if( dataBlockIndex < 0 )
+    {
+      throw new OutOfDataBlocksException( "The filesystem is out of free data blocks" );
+    }
+    return dataBlockIndex;
+  }
+
+  // With block groups, new INodes go in their directory's group if there is room, and so do their data blocks.
+  // Without them, INodes are simply taken in turn.
+  private int allocateINodeNear( INode directoryINode )
+  {
+    if( !superBlock.hasBlockGroups() ) return INodeMap.allocate();
+
+    int group = superBlock.getGroupOfINode( directoryINode.getINodeNumber() );
+    return INodeMap.allocateNear( superBlock.getFirstINodeOfGroup( group ), 1 );
+  }
+
+  // Where to start looking for the data blocks of a new entry in the directory, or -1 for anywhere
+  private int getDataBlockHint( INode directoryINode )
+  {
+    if( !superBlock.hasBlockGroups() ) return -1;
+
+    int group = superBlock.getGroupOfINode( directoryINode.getINodeNumber() );
+    return superBlock.getFirstDataBlockOfGroup( group );
+  }
+
+  private boolean isDataBlockPointer( int pointer )
+  {
+    return superBlock.getDataBlockIndex( pointer ) >= 0;
+  }
+
+  private DataBlock getDataBlock( int pointer ) throws IOException
+  {
+    return blockCache.getDataBlock( pointer );
+  }
+
+  private DirectoryDataBlock getDirectoryBlock( int pointer ) throws IOException
+  {
+    return blockCache.getDirectoryBlock( pointer );
+  }
+
+  private IndirectPointerBlock getIndirectPointerBlock( int pointer ) throws IOException
+  {
+    return blockCache.getIndirectPointerBlock( pointer );
   }
 
   public void interactive() throws Exception
@@ -338,6 +651,10 @@ public class Shell
           case "rm":
             handleRM( responseComponents );
             break;
+
+          case "stats":
+            handleSTATS( responseComponents );
+            break;
         }
       }
       catch( Exception e )
@@ -345,11 +662,57 @@ public class Shell
         //System.out.println( "Caught exception executing " + command + ": "+ e );
         System.out.println( e );
         //e.printStackTrace();
+        continue;
+      }
+
+      // Write out whatever the command changed in the INode and DataBlock maps. A command that failed has
+      // given back what it allocated; any part of the maps it left dirty goes out with the next flush.
+      try
+      {
+        flushNodeMaps();
+      }
+      catch( IOException ioe )
+      {
+        System.out.println( "Caught exception writing NodeMaps: " + ioe );
       }
     }
   }
 
+  // Write out only the parts of the INode and DataBlock maps that have changed
+  private void flushNodeMaps() throws IOException
+  {
+    if( INodeMap.isDirty() )
+    {
+      nodeMapBytesWritten += WriteNodeMap.writeDirty( device, superBlock, INodeMap );
+    }
+    if( dataBlockMap.isDirty() )
+    {
+      nodeMapBytesWritten += WriteNodeMap.writeDirty( device, superBlock, dataBlockMap );
+    }
+  }
+
   // Individual command handlers
+  private void handleSTATS( String[] args )
+  {
+    // stats doesn't have any options
+    if( args.length != 1 )
+    {
+      System.out.println( "usage: stats" );
+      return;
+    }
+
+    System.out.println( "Block cache: " + blockCache.getNumberOfCachedBlocks() + " of " + blockCache.getMaximumBlocks() + " blocks" );
+    System.out.println( "\thits = "      + blockCache.getHits()      );
+    System.out.println( "\tmisses = "    + blockCache.getMisses()    );
+    System.out.println( "\tevictions = " + blockCache.getEvictions() );
+    System.out.println( "Path cache: " + pathCache.getNumberOfCachedPaths() + " paths" );
+    System.out.println( "\thits = "          + pathCache.getHits()          );
+    System.out.println( "\tmisses = "        + pathCache.getMisses()        );
+    System.out.println( "\tinvalidations = " + pathCache.getInvalidations() );
+    System.out.println( "NodeMaps: " + nodeMapBytesWritten + " bytes written" );
+    System.out.println( "Directory blocks: " + directoryBytesWritten + " bytes written" );
+  }
+
   private void handleRM( String[] args ) throws Exception
   {
     // Check if the parser is ready
@@ -497,107 +860,10 @@ public class Shell
       return;
     }
 
-    // Loop over the data blocks and print them out
-    int   fileSize       = desiredINode.getFileSize();
-    int[] directPointers = desiredINode.getDirectPointers();
-    int   bytesToBeWritten = fileSize;
-    for( int directPointer : directPointers )
-    {
-      if( directPointer < addressOfFirstDataBlock ) continue;
-      byte[] data = dataBlocks[ directPointer - addressOfFirstDataBlock ].getData();
-      String currentPart = "";
-      if( bytesToBeWritten >= data.length )
-      {
-        currentPart = new String( data );
-        bytesToBeWritten -= data.length;
-      }
-      else
-      {
-        currentPart = new String( data, 0, bytesToBeWritten );
-        bytesToBeWritten = 0;
-      }
-
-      System.out.print( currentPart );
-
-      // If we have already written everything, there is no point of continuing the loop.
-      if( bytesToBeWritten == 0 )
-      {
-        break;
-      }
-    }
-
-    //System.out.println( "cat: finished with direct blocks: bytesToBeWritten = " + bytesToBeWritten );
-
-    // Check if we need to go into the indirect pointers
-    if( bytesToBeWritten > 0 )
-    {
-      // Get the indirect pointer
-      int indirectPointer = desiredINode.getIndirectPointer();
-
-      // Sanity check
-      if( indirectPointer < addressOfFirstDataBlock )
-      {
-        throw new InvalidIndirectPointerException( "Indirect Pointer " + indirectPointer + " is invalid" );
-      }
-
-      // Get the indirect pointer block
-      DataBlock indirectPointerBlock = dataBlocks[ indirectPointer - addressOfFirstDataBlock ];
-      if( indirectPointerBlock == null )
-      {
-        throw new InvalidIndirectPointerException( "Indirect Pointer Block is empty" );
-      }
-
-      byte[] indirectPointers = indirectPointerBlock.getData();
-
-      // Loop over the indirect blocks
-      int blockPointerOffset = 0;
-      while( bytesToBeWritten > 0 )
-      {
-        int blockPointer = ByteBuffer.wrap( indirectPointers, blockPointerOffset, 4).getInt();
-        //System.out.println( "Displaying data block " + blockPointer );
-        if( blockPointer < addressOfFirstDataBlock )
-        {
-          throw new IndirectBlockMissingException( "The indirect block pointer is invalid" );
-        }
-
-        // Get the data block
-        DataBlock dataBlock = dataBlocks[ blockPointer - addressOfFirstDataBlock ];
-        if( dataBlock == null )
-        {
-          throw new IndirectBlockMissingException( "An indirect data block is missing" );
-        }
-
-        // Now get and print out the data
-        byte[] data = dataBlock.getData();
-        String currentPart = "";
-
-        if( bytesToBeWritten >= data.length )
-        {
-          currentPart = new String( data );
-          //System.out.println( "Writing indirect block of length " + currentPart.length() );
-          bytesToBeWritten -= data.length;
-        }
-        else
-        {
-          currentPart = new String( data, 0, bytesToBeWritten );
-          //System.out.println( "Writing indirect block of length " + currentPart.length() );
-          //System.out.println( currentPart );
-          bytesToBeWritten = 0;
-        }
-
-        System.out.print( currentPart );
-
-        // If we have already written everything, there is no point of continuing the loop.
-        if( bytesToBeWritten == 0 )
-        {
-          break;
-        }
-
-        blockPointerOffset += 4;
-      }
-
-
-    }
+    // Copy the data blocks straight to the standard output, without decoding them
+    WritableByteChannel standardOutput = Channels.newChannel( System.out );
+    transferFile( desiredINode, standardOutput );
+    System.out.flush();
   }
 
   private void handleExport( String[] args ) throws Exception
@@ -620,11 +886,6 @@ public class Shell
       return;
     }
 
-    // Make sure the directory that contains the remote file exists and is writable
-    remoteFile.createNewFile();
-
-    FileWriter fileWriter = new FileWriter( remoteFile );
-
     // Get the local file specification
     String localFileSpec = args[1];
 
@@ -644,107 +905,48 @@ public class Shell
       return;
     }
 
-    // Loop over the data blocks and print them out
-    int   fileSize       = desiredINode.getFileSize();
-    int[] directPointers = desiredINode.getDirectPointers();
-    int   bytesToBeWritten = fileSize;
-    for( int directPointer : directPointers )
-    {
-      if( directPointer < addressOfFirstDataBlock ) continue;
-      byte[] data = dataBlocks[ directPointer - addressOfFirstDataBlock ].getData();
-      String currentPart = "";
-      if( bytesToBeWritten >= data.length )
-      {
-        currentPart = new String( data );
-        bytesToBeWritten -= data.length;
-      }
-      else
-      {
-        currentPart = new String( data, 0, bytesToBeWritten );
-        bytesToBeWritten = 0;
-      }
-
-      fileWriter.write( currentPart );
+    // Make sure the directory that contains the remote file exists and is writable
+    remoteFile.createNewFile();
 
-      // If we have already written everything, there is no point of continuing the loop.
-      if( bytesToBeWritten == 0 )
-      {
-        break;
-      }
+    // Copy the data blocks straight into the remote file
+    FileOutputStream remoteFileStream = new FileOutputStream( remoteFile );
+    FileChannel      remoteChannel    = remoteFileStream.getChannel();
+    try
+    {
+      transferFile( desiredINode, remoteChannel );
     }
-
-    //System.out.println( "export: finished with direct blocks: bytesToBeWritten = " + bytesToBeWritten );
-
-    // Check if we need to go into the indirect pointers
-    if( bytesToBeWritten > 0 )
+    finally
     {
-      // Get the indirect pointer
-      int indirectPointer = desiredINode.getIndirectPointer();
-
-      // Sanity check
-      if( indirectPointer < addressOfFirstDataBlock )
-      {
-        throw new InvalidIndirectPointerException( "Indirect Pointer " + indirectPointer + " is invalid" );
-      }
-
-      // Get the indirect pointer block
-      DataBlock indirectPointerBlock = dataBlocks[ indirectPointer - addressOfFirstDataBlock ];
-      if( indirectPointerBlock == null )
-      {
-        throw new InvalidIndirectPointerException( "Indirect Pointer Block is empty" );
-      }
-
-      byte[] indirectPointers = indirectPointerBlock.getData();
-
-      // Loop over the indirect blocks
-      int blockPointerOffset = 0;
-      while( bytesToBeWritten > 0 )
-      {
-        int blockPointer = ByteBuffer.wrap( indirectPointers, blockPointerOffset, 4).getInt();
-        //System.out.println( "Displaying data block " + blockPointer );
-        if( blockPointer < addressOfFirstDataBlock )
-        {
-          throw new IndirectBlockMissingException( "The indirect block pointer is invalid" );
-        }
-
-        // Get the data block
-        DataBlock dataBlock = dataBlocks[ blockPointer - addressOfFirstDataBlock ];
-        if( dataBlock == null )
-        {
-          throw new IndirectBlockMissingException( "An indirect data block is missing" );
-        }
-
-        // Now get and print out the data
-        byte[] data = dataBlock.getData();
-        String currentPart = "";
-
-        if( bytesToBeWritten >= data.length )
-        {
-          currentPart = new String( data );
-          //System.out.println( "Writing indirect block of length " + currentPart.length() );
-          bytesToBeWritten -= data.length;
-        }
-        else
-        {
-          currentPart = new String( data, 0, bytesToBeWritten );
-          //System.out.println( "Writing indirect block of length " + currentPart.length() );
-          //System.out.println( currentPart );
-          bytesToBeWritten = 0;
-        }
+      remoteChannel.close();
+      remoteFileStream.close();
+    }
+  }
 
-        fileWriter.write( currentPart );
+  // Copy the contents of a file to the target, byte for byte.
+  // Each extent, or run of consecutive data blocks, is handed to the device as a single transfer.
+  private void transferFile( INode fileINode, WritableByteChannel target ) throws Exception
+  {
+    long[] bytesToBeWritten = { fileINode.getFileSize() };
+    blockMap.walkExtents( fileINode, extent ->
+    {
+      long length = Math.min( (long)extent.getLength() * FSConstants.BLOCK_SIZE, bytesToBeWritten[0] );
+      bytesToBeWritten[0] -= transferRun( extent.getStart(), length, target );
+      return bytesToBeWritten[0] > 0;
+    } );
 
-        // If we have already written everything, there is no point of continuing the loop.
-        if( bytesToBeWritten == 0 )
-        {
-          break;
-        }
+    if( bytesToBeWritten[0] > 0 )
+    {
+      throw new IndirectBlockMissingException( "A data block is missing" );
+    }
+  }
 
-        blockPointerOffset += 4;
-      }
+  // Returns the number of bytes transferred
+  private long transferRun( long firstBlock, long length, WritableByteChannel target ) throws IOException
+  {
+    if( firstBlock < 0 || length <= 0 ) return 0;
 
-    }
-    fileWriter.close();
+    device.transferTo( firstBlock * FSConstants.BLOCK_SIZE, length, target );
+    return length;
   }
 
 
@@ -768,6 +970,13 @@ public class Shell
       return;
     }
 
+    // Nothing is reserved for it until we know it can be read
+    if( !remoteFile.isFile() || !remoteFile.canRead() )
+    {
+      System.out.println( "Could not read " + remoteFileSpec + ": it is not a readable file" );
+      return;
+    }
+
     // Get the local file specification
     String localFileSpec = args[2];
 
@@ -790,249 +999,148 @@ public class Shell
     INode localDirectoryINode = findINode( localDirectory, currentDirectory );
 
     // Make sure the file does not already exist
-    List<FileDescriptor> fileDescriptors = getDirectoryContents( currentDirectory );
-    for( FileDescriptor fileDescriptor : fileDescriptors )
+    if( lookUpEntry( localDirectoryINode, localFilename ) >= 0 )
     {
-      if( fileDescriptor.getName().trim().equals( localFilename ) )
-      {
-        System.out.println( "File " + localFilename + " already exists" );
-        return;
-      }
+      System.out.println( "File " + localFilename + " already exists" );
+      return;
     }
 
-    // Allocate an INode for this file
-    int nextUnsedINodeIndex = INodeMap.getNodeMap().nextClearBit( 0 );
-    if( nextUnsedINodeIndex < 0 )
+    // Work out how many blocks the file needs, and make sure it fits in an INode
+    long remoteFileSize  = remoteFile.length();
+    long maximumFileSize = superBlock.getMaximumFileSize();
+    if( remoteFileSize > maximumFileSize )
     {
-      throw new OutOfINodesException( "Could not allocate an INode for this file" );
+      System.out.println( "File " + remoteFileSpec + " is too large: at most " + maximumFileSize + " bytes can be imported" );
+      return;
     }
+    int numberOfFileBlocks = (int)( ( remoteFileSize + FSConstants.BLOCK_SIZE - 1 ) / FSConstants.BLOCK_SIZE );
 
-    // Mark this INode as in use
-    INodeMap.getNodeMap().set( nextUnsedINodeIndex );
-
-    // Now create the INode
-    INode localFileINode = new INode( nextUnsedINodeIndex );
-    INodes[ nextUnsedINodeIndex ] = localFileINode;
-    localFileINode.setAccessMode( AccessConstants.read | AccessConstants.write | AccessConstants.execute );
-    localFileINode.setNumberOfLinks( 1 );
-    localFileINode.setFileSize( 0 );
-    localFileINode.setType( INodeType.File );
-
-    // We need to create a directory entry for this in the directory
-    boolean entryCreated                                 = false;
-    DirectoryDataBlock  updatedDirectoryDataBlock        = null;
-    int                 updatedDirectoryDataBlockPointer = -1;
-    boolean             localDirectoryINodeUpdated       = false;
-    int[] directPointers = localDirectoryINode.getDirectPointers();
-    for( int i = 0; i < directPointers.length; i++ )
+    // Reserve all the blocks up front as runs, with the blocks that map the file following the data:
+    // the indirect blocks, or the extent blocks if the file system maps new files by extents
+    boolean      useExtents = superBlock.hasExtents();
+    List<Extent> dataRuns   = reserveDataBlocks( numberOfFileBlocks, getDataBlockHint( localDirectoryINode ) );
+    List<Extent> mapRuns;
+    try
     {
-      int directPointer = localDirectoryINode.getDirectPointer( i );
-      if( directPointer >= addressOfFirstDataBlock )
-      {
-        DirectoryDataBlock dataBlock = (DirectoryDataBlock)dataBlocks[directPointer - addressOfFirstDataBlock];
-        if( dataBlock == null ) continue;
-
-        // We got a valid directory block.  Try to write our pointer to it.
-        if( dataBlock.createDirectoryEntry( localFileINode.getINodeNumber(), localFilename ) )
-        {
-          entryCreated                     = true;
-          updatedDirectoryDataBlockPointer = directPointer;
-          updatedDirectoryDataBlock        = dataBlock;
-          break;
-        }
-      }
-      else
-      {
-        // Add a new DirectoryDataBlock
-        DirectoryDataBlock dataBlock = new DirectoryDataBlock();
-
-        // We need to find an unused data block
-        int nextFreeDataBlockIndex = dataBlockMap.getNodeMap().nextClearBit(0 );
-
-        // Sanity check
-        if( nextFreeDataBlockIndex < 0 )
-        {
-          throw new OutOfDataBlocksException( "The filesystem is out of free data blocks" );
-        }
-
-        // Mark this data block as in use
-        dataBlockMap.getNodeMap().set( nextFreeDataBlockIndex );
-
-        // Add the new data block to the list of data blocks
-        directPointer = nextFreeDataBlockIndex + addressOfFirstDataBlock;
-        dataBlocks[ nextFreeDataBlockIndex ] = dataBlock;
-        localDirectoryINode.setDirectPointer( i, directPointer );
-
-        //  This next block of code should always work, but we'll leave the 'if' anyway.
-        if( dataBlock.createDirectoryEntry( localFileINode.getINodeNumber(), localFilename ) )
-        {
-          entryCreated                     = true;
-          updatedDirectoryDataBlockPointer = directPointer;
-          updatedDirectoryDataBlock        = dataBlock;
-          localDirectoryINodeUpdated       = true;
-          break;
-        }
-      }
+      int numberOfMapBlocks = useExtents ? BlockMap.getNumberOfExtentBlocks( dataRuns.size() ) : BlockMap.getNumberOfIndirectBlocks( numberOfFileBlocks );
+      int mapHint           = dataRuns.isEmpty() ? -1 : superBlock.getDataBlockIndex( dataRuns.get( dataRuns.size() - 1 ).getStart() ) + 1;
+      mapRuns = reserveDataBlocks( numberOfMapBlocks, mapHint );
     }
-
-    // Check if we successfully created the directory entry
-    if( !entryCreated )
+    catch( OutOfDataBlocksException e )
     {
-      // TODO: allocate a new block from the indirect block if the direct blocks are all full.
+      freeDataBlocks( dataRuns, 0 );
+      throw e;
     }
 
-    // Now we need to read the file, and write its contents to data blocks in our file system
-    byte[] buffer = new byte[ FSConstants.BLOCK_SIZE ];
-    FileInputStream remoteFileStream = new FileInputStream( remoteFile );
-    int fileSize        = 0;
-    int blocksAllocated = 0;
-    boolean indirectPointerBlockAdded = false;
-    while( true )
+    // Allocate an INode for this file and mark it as in use
+    int nextUnsedINodeIndex = allocateINodeNear( localDirectoryINode );
+    if( nextUnsedINodeIndex < 0 )
     {
-      // Read in a block of data
-      int bytesRead = remoteFileStream.read( buffer, 0, FSConstants.BLOCK_SIZE );
-      if( bytesRead <= 0 ) break;
-
-      // Allocate a data block
-      int nextUnusedDataBlockIndex = dataBlockMap.getFirstUnallocatedBlock();
-      if( nextUnusedDataBlockIndex < 0 )
-      {
-        throw new OutOfDataBlocksException( "There are no more unused data blocks" );
-      }
-      //System.out.println( "Allocating data block " + nextUnusedDataBlockIndex );
-
-      // Mark this block as now in use
-      dataBlockMap.getNodeMap().set( nextUnusedDataBlockIndex );
+      freeDataBlocks( dataRuns, 0 );
+      freeDataBlocks( mapRuns, 0 );
+      throw new OutOfINodesException( "Could not allocate an INode for this file" );
+    }
+    initializeINodeBlockFor( nextUnsedINodeIndex );
 
-      // Make up a data block
-      DataBlock newDataBlock = new DataBlock();
-      newDataBlock.setData( buffer );
-      int newDataBlockIndex = nextUnusedDataBlockIndex;
-      dataBlocks[ newDataBlockIndex ] = newDataBlock;
-      //System.out.println( "Added new data block to array of data blocks at index " + newDataBlockIndex );
+    // Now create the INode
+    INode localFileINode = new INode( nextUnsedINodeIndex );
+    INodes[ nextUnsedINodeIndex ] = localFileINode;
+    localFileINode.setAccessMode( AccessConstants.read | AccessConstants.write | AccessConstants.execute );
+    localFileINode.setNumberOfLinks( 1 );
+    localFileINode.setFileSize( 0 );
+    localFileINode.setType( INodeType.File );
 
-      // Add it to the INode
-      IndirectPointerBlock indirectPointerBlock = null;
-      if( !localFileINode.addDirectPointer( addressOfFirstDataBlock + newDataBlockIndex ) )
+    // Now stream the file through one reusable buffer, a run of reserved blocks at a time.
+    // The blocks that map the file are written as they fill, so neither takes memory in proportion to the file.
+    if( importBuffer == null )
+    {
+      importBuffer = ByteBuffer.allocateDirect( IMPORT_BUFFER_BLOCKS * FSConstants.BLOCK_SIZE );
+    }
+    BlockMapWriter blockMapWriter = new BlockMapWriter( device, blockCache, addressOfFirstDataBlock, localFileINode, useExtents, mapRuns );
+    long fileSize      = 0;
+    int  blocksWritten = 0;
+    try( FileInputStream remoteFileStream = new FileInputStream( remoteFile );
+         FileChannel     remoteChannel    = remoteFileStream.getChannel() )
+    {
+      copyRuns:
+      for( Extent run : dataRuns )
       {
-        // This happens if the direct blocks are already full.
-        // Try to add it to the indirect block
-        int indirectPointer = localFileINode.getIndirectPointer();
-        if( indirectPointer < addressOfFirstDataBlock )
+        for( int offset = 0; offset < run.getLength(); offset += IMPORT_BUFFER_BLOCKS )
         {
-          // The indirect pointer is not yet set.
-          int indirectIndex = dataBlockMap.getFirstUnallocatedBlock();
-          if( indirectIndex < 0 )
+          int firstAddress = run.getStart() + offset;
+          int runLength    = Math.min( IMPORT_BUFFER_BLOCKS, run.getLength() - offset );
+
+          // Fill the buffer from the file
+          importBuffer.clear();
+          importBuffer.limit( runLength * FSConstants.BLOCK_SIZE );
+          while( importBuffer.hasRemaining() )
           {
-            throw new OutOfDataBlocksException( "Could not allocate an indirect pointer block: there are no more free data blocks!" );
+            if( remoteChannel.read( importBuffer ) < 0 ) break;
           }
-          dataBlockMap.getNodeMap().set( indirectIndex );
-          indirectPointer = indirectIndex + addressOfFirstDataBlock;
-          localFileINode.setIndirectPointer( indirectPointer );
-
-          // Now allocate an indirect pointer block
-          indirectPointerBlock = new IndirectPointerBlock( addressOfFirstDataBlock );
-          dataBlocks[ indirectIndex ] = indirectPointerBlock;
-          indirectPointerBlockAdded = true;
-        }
-        else
-        {
-          indirectPointerBlock = (IndirectPointerBlock)dataBlocks[ indirectPointer - addressOfFirstDataBlock ];
-        }
+          int bytesRead = importBuffer.position();
+          if( bytesRead == 0 ) break copyRuns;
 
-        indirectPointerBlock.addIndirectPointer(  newDataBlockIndex + addressOfFirstDataBlock );
-      }
+          // The end of the last block must be zero
+          int blocksRead = ( bytesRead + FSConstants.BLOCK_SIZE - 1 ) / FSConstants.BLOCK_SIZE;
+          while( importBuffer.position() < blocksRead * FSConstants.BLOCK_SIZE )
+          {
+            importBuffer.put( (byte)0 );
+          }
+          importBuffer.flip();
+          device.writeBlock( firstAddress, importBuffer );
 
-      blocksAllocated++;
-      fileSize += bytesRead;
+          // Anything the cache still holds for these blocks is out of date now
+          for( int i = 0; i < blocksRead; i++ )
+          {
+            blockCache.invalidate( firstAddress + i );
+          }
+          blockMapWriter.addRun( firstAddress, blocksRead );
 
-      if( bytesRead < FSConstants.BLOCK_SIZE )
-      {
-        break;
+          fileSize      += bytesRead;
+          blocksWritten += blocksRead;
+          if( blocksRead < runLength ) break copyRuns;
+        }
       }
+      blockMapWriter.finish();
+    }
+    catch( IOException e )
+    {
+      // Give back everything reserved for the file, so that nothing of it reaches the disk
+      freeDataBlocks( dataRuns, 0 );
+      freeDataBlocks( mapRuns, 0 );
+      INodeMap.setNodeAllocation( false, nextUnsedINodeIndex );
+      INodes[ nextUnsedINodeIndex ] = new INode( nextUnsedINodeIndex );
+      throw e;
     }
 
+    // The file may have shrunk since we looked at its size. Give back anything we did not use.
+    freeDataBlocks( dataRuns, blocksWritten );
+    freeDataBlocks( mapRuns, blockMapWriter.getNumberOfMapBlocksUsed() );
+
     localFileINode.setFileSize( fileSize );
-    localFileINode.setAllocatedBlocks( blocksAllocated );
+    localFileINode.setAllocatedBlocks( blocksWritten );
 
-    remoteFileStream.close();
     //System.out.println( "Synchronizing" );
 
     // Now, we just need to synchronize the data structures with the actual file system.
-    // INodeMap
-    inputFile.seek( addressOfINodeMap * FSConstants.BLOCK_SIZE );
-    WriteNodeMap.write( inputFile, INodeMap );
-
-    // DataBlockMap
-    inputFile.seek(addressOfDataBlockMap * FSConstants.BLOCK_SIZE );
-    WriteNodeMap.write( inputFile, dataBlockMap );
-
-    // INode for the directory --- if updated
-    if( localDirectoryINodeUpdated )
-    {
-      inputFile.seek( addressOfFirstINode*FSConstants.BLOCK_SIZE + localDirectoryINode.getINodeNumber()*FSConstants.BYTES_PER_INODE );
-      WriteINode.write( inputFile, localDirectoryINode );
-    }
+    // The INodeMap and DataBlockMap are written out when the command finishes.
 
     // New INode for file
-    inputFile.seek( addressOfFirstINode*FSConstants.BLOCK_SIZE + localFileINode.getINodeNumber()*FSConstants.BYTES_PER_INODE );
-    WriteINode.write( inputFile, localFileINode );
+    WriteINode.write( device, superBlock, localFileINode );
     System.out.println( "Finished writing INode " + localFileINode.getINodeNumber() + " for new file" );
 
-    // DirectoryDataBlock for directory (updated or newly created)
-    inputFile.seek( updatedDirectoryDataBlockPointer * FSConstants.BLOCK_SIZE );
+    // Only now that the file is complete does it get its entry in the directory. If there is no room for one, the file goes again.
     try
     {
-
-
-      WriteDataBlock.write( inputFile, updatedDirectoryDataBlock );
-    }
-    catch( Exception e )
-    {
-      System.out.println( "Caught exception: "+ e );
-      e.printStackTrace();
-    }
-    //System.out.println( "Finished write directory data block" );
-
-    // Data Blocks for file itself
-    //      Direct blocks
-    for( int directPointer : localFileINode.getDirectPointers() )
-    {
-      if( directPointer >= addressOfFirstDataBlock )
-      {
-        inputFile.seek( directPointer * FSConstants.BLOCK_SIZE );
-        WriteDataBlock.write( inputFile, dataBlocks[ directPointer - addressOfFirstDataBlock ] );
-      }
-    }
-
-    //System.out.println( "Finished writing direct blocks" );
-
-    //     Indirect blocks
-    int indirectPointer = localFileINode.getIndirectPointer();
-    if( indirectPointer < addressOfFirstDataBlock )
-    {
-      // There are no indirect blocks, so we are done.
-      return;
-    }
-
-    IndirectPointerBlock indirectPointerBlock = (IndirectPointerBlock)dataBlocks[ indirectPointer - addressOfFirstDataBlock ];
-    if( indirectPointerBlockAdded )
-    {
-      inputFile.seek( indirectPointer*FSConstants.BLOCK_SIZE );
-      WriteDataBlock.write( inputFile, indirectPointerBlock );
+      addDirectoryEntry( localDirectoryINode, localFilename, localFileINode.getINodeNumber() );
     }
-    List<Integer> indirectPointers = indirectPointerBlock.getIndirectPointers();
-    for( int currentIndirectPointer : indirectPointers )
+    catch( OutOfDataBlocksException | CreateDirectoryEntryException e )
     {
-      if( currentIndirectPointer < addressOfFirstDataBlock )
-      {
-        continue;
-      }
-      DataBlock currentDataBlock = dataBlocks[ currentIndirectPointer - addressOfFirstDataBlock ];
-      inputFile.seek( currentIndirectPointer * FSConstants.BLOCK_SIZE );
-      WriteDataBlock.write( inputFile, currentDataBlock );
+      removeFile( localFileINode );
+      throw e;
     }
   }
+
   private void handlePWD( String[] args ) throws Exception
   {
     // pwd doesn't have any options
@@ -1042,50 +1150,8 @@ public class Shell
       return;
     }
 
-    // Start in current directory and move backwards until we hit a directory that doesn't have a parent, the root!
-    String fullPath = null;
-    INode tempDirectory = currentDirectory;
-    int inodeNumber     = currentDirectory.getINodeNumber();
-    List<FileDescriptor> fileDescriptors = getDirectoryContents( currentDirectory );
-    while( true )
-    {
-
-      INode parentDirectory = null;
-      for( FileDescriptor fileDescriptor : fileDescriptors )
-      {
-        if( fileDescriptor.getName().trim().equals( ".." ) )
-        {
-          parentDirectory = INodes[fileDescriptor.getINodeNumber()];
-        }
-      }
-
-      if( parentDirectory == null ) break;
-
-      fileDescriptors = getDirectoryContents( parentDirectory );
-
-      for( FileDescriptor fileDescriptor : fileDescriptors )
-      {
-        if( fileDescriptor.getINodeNumber() == inodeNumber )
-        {
-          if( fullPath == null )
-          {
-            fullPath = "/" + fileDescriptor.getName();
-          }
-          else
-          {
-            fullPath = "/" + fileDescriptor.getName() + fullPath;
-          }
-        }
-      }
-
-      inodeNumber = parentDirectory.getINodeNumber();
-    }
-
-    // Check if we're actually at the root.
-    if( fullPath == null )
-    {
-      fullPath = "/";
-    }
+    // Follow the parents of the current directory up to the root
+    String fullPath = getPath( currentDirectory );
 
     // That's it
     System.out.println( fullPath );
@@ -1213,45 +1279,27 @@ public class Shell
       return;
     }
 
-    // Loop over all the directory entries referring to this INode so see if the directory already exists.
-    // Get a list of the files in the directory
-    List<FileDescriptor> fileDescriptors = getDirectoryContents( desiredINode );
-    if( fileDescriptors != null && fileDescriptors.size() > 0 )
+    // See if the directory already exists.
+    if( lookUpEntry( desiredINode, directoryName ) >= 0 )
     {
-      for( FileDescriptor fileDescriptor : fileDescriptors )
-      {
-        if( directoryName.equals( fileDescriptor.getName() ) )
-        {
-          System.out.println( "A file with name " + directoryName + " already exists in the specified directory" );
-          return;
-        }
-      }
+      System.out.println( "A file with name " + directoryName + " already exists in the specified directory" );
+      return;
     }
 
-    // Allocate a new INode as a directory
-    int nextFreeINodeIndex = INodeMap.getNodeMap().nextClearBit(0 );
+    // Allocate a directory data block for it first, close to its parent's, so that running out of blocks leaves nothing to undo
+    int nextFreeDataBlockIndex = allocateDirectoryBlockNear( desiredINode.getDirectPointer( 0 ) );
+    int newDataBlockPointer    = superBlock.getAddressOfDataBlock( nextFreeDataBlockIndex );
+
+    // Allocate a new INode as a directory and mark it as in use
+    int nextFreeINodeIndex = allocateINodeNear( desiredINode );
 
     // Sanity check
     if( nextFreeINodeIndex < 0 )
     {
+      dataBlockMap.setNodeAllocation( false, nextFreeDataBlockIndex );
       throw new OutOfINodesException( "The filesystem is out of free INodes" );
     }
-
-    // Mark this INode as in use
-    INodeMap.getNodeMap().set( nextFreeINodeIndex );
-
-    // Allocate a directory data block for it
-    int nextFreeDataBlockIndex = dataBlockMap.getNodeMap().nextClearBit( 0 );
-    if( nextFreeDataBlockIndex < 0 )
-    {
-      throw new OutOfDataBlocksException( "There are no more free data blocks" );
-    }
-
-    // Mark this data block as in use
-    dataBlockMap.getNodeMap().set( nextFreeDataBlockIndex );
-
-    boolean INodeMapUpdated = true;
-    boolean dataMapUpdated  = true;
+    initializeINodeBlockFor( nextFreeINodeIndex );
 
     // Make up the new INode
     //System.out.println( "Creating INode " + nextFreeINodeIndex + " as new directory" );
@@ -1260,7 +1308,7 @@ public class Shell
     newINode.setNumberOfLinks( 1 );
     newINode.setFileSize( FSConstants.BLOCK_SIZE );
     newINode.setType( INodeType.Directory );
-    newINode.addDirectPointer( nextFreeDataBlockIndex + addressOfFirstDataBlock );
+    newINode.addDirectPointer( newDataBlockPointer );
     newINode.setAllocatedBlocks( 1 );
     INodes[ nextFreeINodeIndex ] = newINode;
 
@@ -1271,106 +1319,33 @@ public class Shell
     {
       if( newDataBlock.createDirectoryEntry( desiredINode.getINodeNumber(), ".." ) )
       {
-        dataBlocks[ nextFreeDataBlockIndex ] = newDataBlock;
-      }
-    }
-
-    int newINodeCreated           = nextFreeINodeIndex;
-    int directoryDataBlockCreated = nextFreeDataBlockIndex;
-
-    // Try to write a new directory entry into one of the original INode's direct blocks
-    boolean entryCreated                                 = false;
-    DirectoryDataBlock  updatedDirectoryDataBlock        = null;
-    int                 updatedDirectoryDataBlockPointer = -1;
-    boolean             desiredINodeUpdated              = false;
-    int[] directPointers = desiredINode.getDirectPointers();
-    for( int i = 0; i < directPointers.length; i++ )
-    {
-      int directPointer = desiredINode.getDirectPointer( i );
-      if( directPointer >= addressOfFirstDataBlock )
-      {
-        DirectoryDataBlock dataBlock = (DirectoryDataBlock)dataBlocks[directPointer - addressOfFirstDataBlock];
-        if( dataBlock == null ) continue;
-
-        // We got a valid directory block.  Try to write our pointer to it.
-        if( dataBlock.createDirectoryEntry( newINode.getINodeNumber(), directoryName ) )
-        {
-          entryCreated              = true;
-          updatedDirectoryDataBlockPointer = directPointer;
-          updatedDirectoryDataBlock        = dataBlock;
-          break;
-        }
-      }
-      else
-      {
-        // Add a new DirectoryDataBlock
-        DirectoryDataBlock dataBlock = new DirectoryDataBlock();
-
-        // We need to find an unused data block
-        nextFreeDataBlockIndex = dataBlockMap.getNodeMap().nextClearBit(0 );
-
-        // Sanity check
-        if( nextFreeDataBlockIndex < 0 )
-        {
-          throw new OutOfDataBlocksException( "The filesystem is out of free data blocks" );
-        }
-
-        // Mark this data block as in use
-        dataBlockMap.getNodeMap().set( nextFreeDataBlockIndex );
-
-        // Add the new data block to the list of data blocks
-        directPointer = nextFreeDataBlockIndex + addressOfFirstDataBlock;
-        dataBlocks[ nextFreeDataBlockIndex ] = dataBlock;
-        desiredINode.setDirectPointer( i, directPointer );
-
-        //  This next block of code should always work, but we'll leave the 'if' anyway.
-        if( dataBlock.createDirectoryEntry( newINode.getINodeNumber(), directoryName ) )
-        {
-          entryCreated              = true;
-          updatedDirectoryDataBlockPointer = directPointer;
-          updatedDirectoryDataBlock        = dataBlock;
-          desiredINodeUpdated              = true;
-          break;
-        }
+        blockCache.put( newDataBlockPointer, newDataBlock, true );
       }
     }
 
-    // Check if we successfully created the directory entry
-    if( !entryCreated )
-    {
-      // TODO: allocate a new block from the indirect block
-    }
-
     // Now we need to synchronize these changes with the underlying file system.
-    // Write out the INodeMap
-    inputFile.seek( addressOfINodeMap * FSConstants.BLOCK_SIZE );
-    WriteNodeMap.write( inputFile, INodeMap );
-
-    // Write out the dataBlockMap
-    inputFile.seek( addressOfDataBlockMap * FSConstants.BLOCK_SIZE );
-    WriteNodeMap.write( inputFile, dataBlockMap );
+    // The INodeMap and dataBlockMap are written out when the command finishes.
 
     // Write out the new INode containing the new directory
-    inputFile.seek( addressOfFirstINode*FSConstants.BLOCK_SIZE + newINodeCreated*FSConstants.BYTES_PER_INODE );
-    WriteINode.write( inputFile, newINode );
+    WriteINode.write( device, superBlock, newINode );
 
     // Write out the new directory data block
-    inputFile.seek( ( addressOfFirstDataBlock + directoryDataBlockCreated )*FSConstants.BLOCK_SIZE );
-    WriteDataBlock.write( inputFile, newDataBlock );
-
-    // Write out the updated directory data block
-    inputFile.seek( updatedDirectoryDataBlockPointer * FSConstants.BLOCK_SIZE );
-    WriteDataBlock.write( inputFile, updatedDirectoryDataBlock );
+    directoryBytesWritten += WriteDirectoryBlock.writeDirty( device, newDataBlockPointer, newDataBlock );
+    blockCache.unpin( newDataBlockPointer );
 
-    // Finally check if the original INode was updated --- through the addition of a new data block pointer
-    if( desiredINodeUpdated )
+    // Finally add the entry for it to the original directory, which may need to grow for it
+    try
+    {
+      addDirectoryEntry( desiredINode, directoryName, newINode.getINodeNumber() );
+    }
+    catch( OutOfDataBlocksException | CreateDirectoryEntryException e )
     {
-      inputFile.seek( addressOfFirstINode*FSConstants.BLOCK_SIZE + desiredINode.getINodeNumber()*FSConstants.BYTES_PER_INODE );
-      WriteINode.write( inputFile, desiredINode );
+      removeFile( newINode );
+      throw e;
     }
   }
 
-  private boolean isEmpty( INode directoryINode ) throws NotADirectoryException
+  private boolean isEmpty( INode directoryINode ) throws NotADirectoryException, IOException
   {
     // Sanity check
     if( directoryINode.getType() != INodeType.Directory )
@@ -1378,62 +1353,18 @@ public class Shell
       throw new NotADirectoryException( "The given INode " + directoryINode.getINodeNumber() + " is not a directory! ");
     }
 
-    boolean empty = true;
-
-    // Loop over the Direct Pointers first
-    for( int directPointer : directoryINode.getDirectPointers() )
-    {
-      if( directPointer < addressOfFirstDataBlock ) continue;
-
-      DirectoryDataBlock dataBlock = (DirectoryDataBlock)dataBlocks[directPointer - addressOfFirstDataBlock];
-
-      // Get the Directory Entries
-      for( DirectoryDataBlock.DirectoryEntry directoryEntry : dataBlock.getDirectoryEntries() )
-      {
-        int INodeNumber = directoryEntry.getINodeNumber();
-        String fileName = directoryEntry.getName();
-
-        if( INodeNumber < 0 ) continue;
-        if( ".".equals( fileName.trim() ) || "..".equals( fileName.trim() ) ) continue;
-        empty = false;
-        break;
-      }
-      if( !empty ) break;
-    }
-
-    if( !empty )
+    // Stop at the first entry other than . and ..
+    return blockMap.walk( directoryINode, ( pointer, level ) ->
     {
-      return false;
-    }
+      if( level != BlockMap.DATA_BLOCK ) return true;
 
-    // Now loop over the indirect entries
-    int indirectBlockPointer = directoryINode.getIndirectPointer();
-    if( indirectBlockPointer >= addressOfFirstDataBlock )
-    {
-      IndirectPointerBlock inDirectPointerBlock = (IndirectPointerBlock)dataBlocks[indirectBlockPointer - addressOfFirstDataBlock];
-      for( int indirectPointer : inDirectPointerBlock.getIndirectPointers() )
+      DirectoryDataBlock dataBlock = getDirectoryBlock( pointer );
+      for( int entry = dataBlock.getFirstEntry(); entry != DirectoryDataBlock.NO_ENTRY; entry = dataBlock.getNextEntry( entry ) )
       {
-
-        if( indirectPointer < addressOfFirstDataBlock ) continue;
-
-        DirectoryDataBlock dataBlock = (DirectoryDataBlock) dataBlocks[indirectPointer - addressOfFirstDataBlock];
-
-        // Get the Directory Entries
-        for( DirectoryDataBlock.DirectoryEntry directoryEntry : dataBlock.getDirectoryEntries() )
-        {
-          int INodeNumber = directoryEntry.getINodeNumber();
-          String fileName = directoryEntry.getName();
-          if( INodeNumber <= 0 ) continue;
-          if( ".".equals( fileName.trim()) || "..".equals( fileName.trim() ) ) continue;
-          empty = false;
-          break;
-        }
-        if( !empty ) break;
+        if( !dataBlock.isDotEntry( entry ) ) return false;
       }
-    }
-
-    // That's it
-    return empty;
+      return true;
+    } );
   }
 
 
@@ -1446,145 +1377,80 @@ public class Shell
       throw new NotADirectoryException( "The given INode " + directoryINode.getINodeNumber() + " is not a directory! " );
     }
 
-    // Loop over all the links until we find the one in question
-    boolean            linkRemoved                = false;
-    int                containingDataBlockPointer = -1;
-    DirectoryDataBlock containingDataBlock        = null;
-
-    // Loop over the direct pointers first
-    for( int directPointer : directoryINode.getDirectPointers() )
-    {
-      if( directPointer < addressOfFirstDataBlock ) continue;
-
-      DirectoryDataBlock dataBlock = (DirectoryDataBlock) dataBlocks[directPointer - addressOfFirstDataBlock];
-
-      // Get the Directory Entries
-      for( DirectoryDataBlock.DirectoryEntry directoryEntry : dataBlock.getDirectoryEntries() )
-      {
-        if( directoryEntry.getName().trim().equals( fileName ) )
-        {
-          //System.out.println( "Found link in data block " + directPointer );
-          containingDataBlockPointer = directPointer;
-          containingDataBlock        = dataBlock;
-          break;
-        }
-      }
-    }
-
-    // Check if we have found the data block
-    if( containingDataBlock == null )
-    {
-      // Need to look through the indirect pointers
-      int indirectBlockPointer = directoryINode.getIndirectPointer();
-      if( indirectBlockPointer < addressOfFirstDataBlock )
-      {
-        throw new LinkNotFoundException( "Could not find link " + fileName + ", indirect block pointer is null" );
-      }
-
-      // Get the IndirectPointer block
-      IndirectPointerBlock indirectPointerBlock = (IndirectPointerBlock)dataBlocks[ indirectBlockPointer ];
-      if( indirectPointerBlock == null )
-      {
-        throw new LinkNotFoundException( "Could not find link " + fileName + ", indirect block is empty" );
-      }
-
-      // Loop over the indirect blocks
-      for( int indirectPointer : indirectPointerBlock.getIndirectPointers() )
-      {
-        if( indirectPointer < addressOfFirstDataBlock ) continue;
-        DirectoryDataBlock directoryDataBlock = (DirectoryDataBlock)dataBlocks[ indirectPointer ];
-
-        // Get the Directory Entries
-        for( DirectoryDataBlock.DirectoryEntry directoryEntry : directoryDataBlock.getDirectoryEntries() )
-        {
-          if( directoryEntry.getName().trim().equals( fileName ) )
-          {
-            containingDataBlockPointer = indirectPointer;
-            containingDataBlock        = directoryDataBlock;
-            break;
-          }
-        }
-        if( containingDataBlock != null )
-        {
-          break;
-        }
-      }
-    }
-
-    // Check if we found the containing block
-    if( containingDataBlock == null )
+    // The index tells us which block holds the link
+    DirectoryIndex       directoryIndex = getDirectoryIndex( directoryINode );
+    DirectoryIndex.Entry entry          = directoryIndex.getEntry( fileName );
+    if( entry == null )
     {
       throw new LinkNotFoundException( "Could not find link for " + fileName );
     }
+    int                containingDataBlockPointer = entry.getBlockPointer();
+    DirectoryDataBlock containingDataBlock        = getDirectoryBlock( containingDataBlockPointer );
 
     // Remove the link
+    blockCache.pin( containingDataBlockPointer );
     containingDataBlock.removeDirectoryEntry( fileName );
 
-    // Resynchronize the data block
+    // Resynchronize the sectors of the data block that changed
     //System.out.println( "Synchronizing block " + containingDataBlockPointer );
-    inputFile.seek( containingDataBlockPointer * FSConstants.BLOCK_SIZE );
-    WriteDataBlock.write( inputFile, containingDataBlock );
+    directoryBytesWritten += WriteDirectoryBlock.writeDirty( device, containingDataBlockPointer, containingDataBlock );
+    blockCache.unpin( containingDataBlockPointer );
+    directoryIndex.removeEntry( fileName );
+    directoryIndex.setFreeSpace( containingDataBlockPointer, containingDataBlock.getLargestFreeSpace() );
+    pathCache.invalidateDirectory( directoryINode.getINodeNumber() );
+
+    // Forget the parent unless the INode is known through another link
+    int INodeNumber = entry.getINodeNumber();
+    if( parentINodeNumbers[ INodeNumber ] == directoryINode.getINodeNumber() && fileName.trim().equals( entryNames[ INodeNumber ] ) )
+    {
+      clearParent( INodeNumber );
+    }
   }
 
   // Remove a file INode and all its data blocks
   private void removeFile( INode fileINode ) throws Exception
   {
-    // First remove all the data blocks
-    //     Direct blocks first
-    for( int directPointer : fileINode.getDirectPointers() )
+    // First remove all the data blocks, and the indirect blocks once the blocks they point to are gone.
+    // The freed blocks are dropped from the cache and zeroed on disk a run of consecutive blocks at a time.
+    int[] run = { -1, 0 };   // the start and length of the freed blocks not yet zeroed
+    blockMap.walk( fileINode, ( pointer, level ) ->
     {
-      if( directPointer >= addressOfFirstDataBlock )
-      {
-        int directIndex = directPointer - addressOfFirstDataBlock;
-        dataBlockMap.getNodeMap().clear( directIndex );
-        DataBlock newDataBlock = new DataBlock();
-        dataBlocks[ directIndex ] = newDataBlock;
-        inputFile.seek( directPointer * FSConstants.BLOCK_SIZE );
-        WriteDataBlock.write( inputFile, newDataBlock );
-      }
-    }
+      dataBlockMap.setNodeAllocation( false, superBlock.getDataBlockIndex( pointer ) );
+      blockCache.invalidate( pointer );
 
-    //     Now the indirect blocks, if any
-    int indirectBlockPointer = fileINode.getIndirectPointer();
-    if( indirectBlockPointer >= addressOfFirstDataBlock )
-    {
-      IndirectPointerBlock indirectPointerBlock = (IndirectPointerBlock)dataBlocks[ indirectBlockPointer - addressOfFirstDataBlock ];
-      for( int indirectPointer : indirectPointerBlock.getIndirectPointers() )
+      if( run[1] > 0 && ( pointer != run[0] + run[1] || run[1] == ZERO_BUFFER_BLOCKS ) )
       {
-        if( indirectPointer >= addressOfFirstDataBlock )
-        {
-          int indirectIndex = indirectPointer - addressOfFirstDataBlock;
-          dataBlockMap.getNodeMap().clear( indirectIndex );
-          DataBlock newDataBlock = new DataBlock();
-          dataBlocks[ indirectIndex ] = newDataBlock;
-          inputFile.seek( indirectPointer * FSConstants.BLOCK_SIZE );
-          WriteDataBlock.write( inputFile, newDataBlock );
-        }
+        zeroBlocks( run[0], run[1] );
+        run[1] = 0;
       }
-
-      // Now remove the indirect pointer block itself
-      int indirectBlockIndex = indirectBlockPointer - addressOfFirstDataBlock;
-      dataBlockMap.getNodeMap().clear( indirectBlockIndex );
-
-      DataBlock newDataBlock = new DataBlock();
-      dataBlocks[ indirectBlockIndex ] = newDataBlock;
-      inputFile.seek( indirectBlockPointer * FSConstants.BLOCK_SIZE );
-      WriteDataBlock.write( inputFile, newDataBlock );
-    }
+      if( run[1] == 0 ) run[0] = pointer;
+      run[1]++;
+      return true;
+    } );
+    if( run[1] > 0 ) zeroBlocks( run[0], run[1] );
 
     // Remove the given INode
     int INodeNumber = fileINode.getINodeNumber();
-    INodeMap.getNodeMap().clear( INodeNumber );
-    INode blankINode = new INode( 0 );
+    INodeMap.setNodeAllocation( false, INodeNumber );
+    INode blankINode = new INode( INodeNumber );
     INodes[ INodeNumber ] = blankINode;
-    inputFile.seek( addressOfFirstINode*FSConstants.BLOCK_SIZE + INodeNumber*FSConstants.BYTES_PER_INODE );
-    WriteINode.write( inputFile, blankINode );
-
-    // Resynchronize the INode and DataBlock maps
-    inputFile.seek( addressOfINodeMap * FSConstants.BLOCK_SIZE );
-    WriteNodeMap.write( inputFile, INodeMap );
-    inputFile.seek( addressOfDataBlockMap * FSConstants.BLOCK_SIZE );
-    WriteNodeMap.write( inputFile, dataBlockMap );
+    WriteINode.write( device, superBlock, blankINode );
+    directoryIndexes.remove( INodeNumber );
+    pathCache.invalidateDirectory( INodeNumber );
+    clearParent( INodeNumber );
+
+    // The INode and DataBlock maps are resynchronized when the command finishes
+  }
+
+  private void zeroBlocks( int firstBlock, int numberOfBlocks ) throws IOException
+  {
+    if( zeroBuffer == null )
+    {
+      zeroBuffer = ByteBuffer.allocateDirect( ZERO_BUFFER_BLOCKS * FSConstants.BLOCK_SIZE );
+    }
+    zeroBuffer.clear();
+    zeroBuffer.limit( numberOfBlocks * FSConstants.BLOCK_SIZE );
+    device.writeBlock( firstBlock, zeroBuffer );
   }
 
   // Remove a directory INode and all its data blocks
@@ -1599,7 +1465,7 @@ public class Shell
       if( ".".equals( entryName.trim() ) || "..".equals( entryName.trim() ) ) continue;
 
       //System.out.println( "Entry is " + entryName );
-      INode entryINode   = INodes[ INodeNumber ];
+      INode entryINode   = getINode( INodeNumber );
       if( entryINode.getType() == INodeType.File )
       {
         removeFile( entryINode );
@@ -1630,7 +1496,7 @@ public class Shell
     removeFile( directoryINode );
   }
 
-  private List<FileDescriptor> getDirectoryContents( INode directoryINode ) throws NotADirectoryException
+  private List<FileDescriptor> getDirectoryContents( INode directoryINode ) throws NotADirectoryException, IOException
   {
 
     // Sanity check
@@ -1641,57 +1507,26 @@ public class Shell
 
     // Get a list of the files in the directory
     List<FileDescriptor> fileDescriptors = new ArrayList<>();
-
-    // Loop over the Direct Pointers first
-    for( int directPointer : directoryINode.getDirectPointers() )
+    blockMap.walk( directoryINode, ( pointer, level ) ->
     {
-      //System.out.println( "directPointer = " + directPointer );
-      if( directPointer < addressOfFirstDataBlock ) continue;
+      if( level != BlockMap.DATA_BLOCK ) return true;
 
-      DirectoryDataBlock dataBlock = (DirectoryDataBlock)dataBlocks[directPointer - addressOfFirstDataBlock];
+      DirectoryDataBlock dataBlock = getDirectoryBlock( pointer );
       //System.out.println( "DirectoryDataBlock = " + dataBlock );
-      //System.out.println( "Directory entries = " + dataBlock.getDirectoryEntries() );
 
       // Get the Directory Entries
-      for( DirectoryDataBlock.DirectoryEntry directoryEntry : dataBlock.getDirectoryEntries() )
+      for( int entry = dataBlock.getFirstEntry(); entry != DirectoryDataBlock.NO_ENTRY; entry = dataBlock.getNextEntry( entry ) )
       {
-        int INodeNumber = directoryEntry.getINodeNumber();
-        String fileName = directoryEntry.getName();
+        int INodeNumber = dataBlock.getINodeNumber( entry );
+        String fileName = dataBlock.getName( entry );
         //System.out.println( "getDirectoryContents: INodeNumber = " + INodeNumber );
         //System.out.println( "getDirectoryContents: fileName = " + fileName );
-        if( INodeNumber < 0 ) continue;
 
         FileDescriptor fileDescriptor = new FileDescriptor( fileName, INodeNumber );
         fileDescriptors.add( fileDescriptor );
       }
-    }
-
-    // Now loop over the indirect entries
-    int indirectPointer = directoryINode.getIndirectPointer();
-    if( indirectPointer >= addressOfFirstDataBlock )
-    {
-      // TODO: replace this with an IndirectPointerBlock
-      DataBlock pointerBlock = dataBlocks[indirectPointer - addressOfFirstDataBlock];
-      byte[] pointerData = pointerBlock.getData();
-      for( int i = 0; i < FSConstants.BLOCK_SIZE; i += 4 )
-      {
-        int pointer = ByteBuffer.wrap( pointerData, i, 4 ).getInt();
-        if( pointer <= addressOfFirstDataBlock ) break;
-
-        DirectoryDataBlock dataBlock = (DirectoryDataBlock) dataBlocks[pointer - addressOfFirstDataBlock];
-
-        // Get the Directory Entries
-        for( DirectoryDataBlock.DirectoryEntry directoryEntry : dataBlock.getDirectoryEntries() )
-        {
-          int INodeNumber = directoryEntry.getINodeNumber();
-          String fileName = directoryEntry.getName();
-          if( INodeNumber <= 0 ) continue;
-
-          FileDescriptor fileDescriptor = new FileDescriptor( fileName, INodeNumber );
-          fileDescriptors.add( fileDescriptor );
-        }
-      }
-    }
+      return true;
+    } );
 
     // That's it
     return fileDescriptors;
@@ -1760,58 +1595,7 @@ public class Shell
       //System.out.println( "Desired INode " + desiredINode.getINodeNumber() + " is a directory" );
 
       // Get a list of the files in the directory
-      List<FileDescriptor> fileDescriptors = new ArrayList<>();
-
-      // Loop over the Direct Pointers first
-      for( int directPointer : desiredINode.getDirectPointers() )
-      {
-        //System.out.println( "directPointer = " + directPointer );
-        if( directPointer < addressOfFirstDataBlock ) continue;
-
-        DirectoryDataBlock dataBlock = (DirectoryDataBlock)dataBlocks[directPointer - addressOfFirstDataBlock];
-        //System.out.println( "DirectoryDataBlock = " + dataBlock );
-        //System.out.println( "Directory entries = " + dataBlock.getDirectoryEntries() );
-
-        // Get the Directory Entries
-        for( DirectoryDataBlock.DirectoryEntry directoryEntry : dataBlock.getDirectoryEntries() )
-        {
-          int INodeNumber = directoryEntry.getINodeNumber();
-          String fileName = directoryEntry.getName();
-          //System.out.println( "Shell: handleLS: INodeNumber = " + INodeNumber );
-          //System.out.println( "Shell: handleLS: fileName = " + fileName );
-          if( INodeNumber < 0 ) continue;
-
-          FileDescriptor fileDescriptor = new FileDescriptor( fileName, INodeNumber );
-          fileDescriptors.add( fileDescriptor );
-        }
-      }
-
-      // Now loop over the indirect entries
-      int indirectPointer = desiredINode.getIndirectPointer();
-      if( indirectPointer >= addressOfFirstDataBlock )
-      {
-        IndirectPointerBlock pointerBlock = (IndirectPointerBlock)dataBlocks[indirectPointer - addressOfFirstDataBlock];
-        //byte[] pointerData = pointerBlock.getData();
-        //for( int i = 0; i < FSConstants.BLOCK_SIZE; i += 4 )
-        for( int pointer : pointerBlock.getIndirectPointers() )
-        {
-          //int pointer = ByteBuffer.wrap( pointerData, i, 4 ).getInt();
-          if( pointer <= addressOfFirstDataBlock ) break;
-
-          DirectoryDataBlock dataBlock = (DirectoryDataBlock) dataBlocks[pointer - addressOfFirstDataBlock];
-
-          // Get the Directory Entries
-          for( DirectoryDataBlock.DirectoryEntry directoryEntry : dataBlock.getDirectoryEntries() )
-          {
-            int INodeNumber = directoryEntry.getINodeNumber();
-            String fileName = directoryEntry.getName();
-            if( INodeNumber <= 0 ) continue;
-
-            FileDescriptor fileDescriptor = new FileDescriptor( fileName, INodeNumber );
-            fileDescriptors.add( fileDescriptor );
-          }
-        }
-      }
+      List<FileDescriptor> fileDescriptors = getDirectoryContents( desiredINode );
 
       // Finally report the results
       for( FileDescriptor fileDescriptor : fileDescriptors )
@@ -1829,7 +1613,7 @@ public class Shell
         }
         else
         {
-          INode        currentINode = INodes[ INodeNumber ];
+          INode        currentINode = getINode( INodeNumber );
           /*
           StringBuffer accessBuffer = new StringBuffer();
           if( currentINode.getType() == INodeType.Directory )
@@ -1878,7 +1662,7 @@ public class Shell
           accessBuffer.append( " " + numberOfLinks);
 
           // Get the file size
-          int fileSize = currentINode.getFileSize();
+          long fileSize = currentINode.getFileSize();
           accessBuffer.append( " " + fileSize );
 
           accessBuffer.append( " " + name );
@@ -1975,7 +1759,7 @@ public class Shell
     listingBuffer.append( " " + numberOfLinks);
 
     // Get the file size
-    int fileSize = desiredINode.getFileSize();
+    long fileSize = desiredINode.getFileSize();
     listingBuffer.append( " " + fileSize );
 
     listingBuffer.append( " " + name );
@@ -1997,12 +1781,12 @@ public class Shell
     // Check if this is a relative or an absolute path
     if( "/".equals( filePath ) )
     {
-      return INodes[0];
+      return getINode( 0 );
     }
     else if( filePath.startsWith( "/" ) )
     {
       // This is an absolute path. Start from the root.
-      startingNode = INodes[0];
+      startingNode = getINode( 0 );
 
       // Remove the leading '/' now
       filePath = filePath.substring( 1 );
@@ -2014,22 +1798,27 @@ public class Shell
       return startingNode;
     }
 
+    // See if this path has been resolved before
+    Integer cachedINodeNumber = pathCache.get( startingNode.getINodeNumber(), filePath );
+    if( cachedINodeNumber != null )
+    {
+      return ( cachedINodeNumber == PathCache.NOT_FOUND ) ? null : getINode( cachedINodeNumber );
+    }
+
     String[] fileComponents = filePath.split( "/" );
     INode currentNode = startingNode;
 
+    // Keep track of the directories we look in, so that the cached result can be invalidated when one of them changes
+    int[] directories         = new int[ fileComponents.length ];
+    int   numberOfDirectories = 0;
+
     for( String fileComponent : fileComponents )
     {
+      directories[ numberOfDirectories++ ] = currentNode.getINodeNumber();
+
       // This should be in the current directory
-      List<FileDescriptor> fileDescriptors = getDirectoryContents( currentNode );
-      INode nextNode = null;
-      for( FileDescriptor fileDescriptor : fileDescriptors )
-      {
-        if( fileDescriptor.getName().trim().equals( fileComponent ) )
-        {
-          nextNode = INodes[fileDescriptor.getINodeNumber()];
-          break;
-        }
-      }
+      int   INodeNumber = lookUpEntry( currentNode, fileComponent );
+      INode nextNode    = ( INodeNumber < 0 ) ? null : getINode( INodeNumber );
 
       //if( nextNode == null )
       //{
@@ -2037,29 +1826,66 @@ public class Shell
       // }
 
       currentNode = nextNode;
+      if( currentNode == null ) break;
     }
 
+    pathCache.put( startingNode.getINodeNumber(), filePath,
+                   ( currentNode == null ) ? PathCache.NOT_FOUND : currentNode.getINodeNumber(),
+                   Arrays.copyOf( directories, numberOfDirectories ) );
 
     return currentNode;
   }
 
   public void close() throws IOException
   {
-    inputFile.close();
+    // Let the initializer finish its current step before the device goes away
+    if( initializerThread != null )
+    {
+      INodeInitializer.stop();
+      try
+      {
+        initializerThread.join();
+      }
+      catch( InterruptedException ie )
+      {
+        Thread.currentThread().interrupt();
+      }
+    }
+    flushNodeMaps();
+    device.close();
   }
 
 
-
     public static void main( String[] args )
   {
-    if( args.length != 1 )
+    // The possible options are -l and -c SIZE
+    Options shellOptions = new Options();
+    shellOptions.addOption( "l", "lazy", false, "read INodes and data blocks on first access instead of at mount time" );
+    shellOptions.addOption( "c", "cache-size", true, "the number of bytes of data blocks kept in memory, e.g. 64M" );
+
+    List<String> remainingArguments = null;
+    boolean      lazyMount          = false;
+    long         cacheSize          = DEFAULT_CACHE_SIZE;
+    try
+    {
+      CommandLine commandLine = new DefaultParser().parse( shellOptions, args );
+      if( commandLine.hasOption( 'l' ) ) lazyMount = true;
+      if( commandLine.hasOption( 'c' ) ) cacheSize = Allocate.parseSize( commandLine.getOptionValue( 'c' ) );
+      remainingArguments = commandLine.getArgList();
+    }
+    catch( ParseException | NumberFormatException e )
+    {
+      System.out.println( e.getMessage() );
+    }
+
+    if( remainingArguments == null || remainingArguments.size() != 1 || cacheSize <= 0 )
     {
-      System.out.println( "usage: Shell filePath" );
+      System.out.println( "usage: Shell [-l] [-c SIZE] filePath" );
       System.exit( 1 );
     }
 
     // Get the path the file
-    String filePath = args[0];
+    String filePath = remainingArguments.get( 0 );
     File wcsuFile = new File( filePath );
     if( !wcsuFile.exists() )
     {
@@ -2072,7 +1898,7 @@ public class Shell
     try
     {
       // Try to mount the file
-      shell.mount( wcsuFile );
+      shell.mount( wcsuFile, lazyMount, cacheSize );
 
       // Now issue interactive commands until
       shell.interactive();
@@ -0,0 +1,230 @@
+package edu.wcsu.wcsufs.Writers;
+
+import edu.wcsu.wcsufs.Cache.BlockCache;
+import edu.wcsu.wcsufs.Devices.BlockDevice;
+import edu.wcsu.wcsufs.FSDataStructures.DataBlock;
+import edu.wcsu.wcsufs.FSDataStructures.Extent;
+import edu.wcsu.wcsufs.FSDataStructures.ExtentBlock;
+import edu.wcsu.wcsufs.FSDataStructures.INode;
+import edu.wcsu.wcsufs.FSDataStructures.IndirectPointerBlock;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+// Builds the block map of a new INode as its data blocks are added, in order: the direct pointers and then the
+// indirect blocks, or else the extents and then a chain of extent blocks. The indirect or extent blocks are taken
+// from the given runs of reserved blocks, and each is written out as soon as it is full, so that only one block
+// per level is held at a time however large the file. finish() writes out the rest; the INode is left to the caller.
+public class BlockMapWriter
+{
+  // Member data
+  private final BlockDevice      device;
+  private final BlockCache       blockCache;
+  private final int              addressOfFirstDataBlock;
+  private final INode            inode;
+  private final boolean          useExtents;
+  private final Iterator<Extent> mapBlockRuns;
+
+  // The next map block to hand out: the run it comes from, and how many of that run are gone
+  private Extent mapBlockRun           = null;
+  private int    mapBlockRunUsed       = 0;
+  private int    numberOfMapBlocksUsed = 0;
+
+  // For an INode mapped by blocks, the indirect block being filled at each height, 1 being the one that points at data blocks
+  private long                         numberOfDataBlocks    = 0;
+  private int                          level                 = 0;
+  private final IndirectPointerBlock[] indirectBlocks        = new IndirectPointerBlock[ 4 ];
+  private final int[]                  indirectBlockPointers = new int[ 4 ];
+
+  // For an INode mapped by extents, the extent still growing, and the extent block being filled
+  private Extent      pendingExtent      = null;
+  private ExtentBlock extentBlock        = null;
+  private int         extentBlockPointer = -1;
+
+  public BlockMapWriter( BlockDevice device, BlockCache blockCache, int addressOfFirstDataBlock, INode inode, boolean useExtents,
+                         List<Extent> mapBlockRuns )
+  {
+    this.device                  = device;
+    this.blockCache              = blockCache;
+    this.addressOfFirstDataBlock = addressOfFirstDataBlock;
+    this.inode                   = inode;
+    this.useExtents              = useExtents;
+    this.mapBlockRuns            = mapBlockRuns.iterator();
+
+    if( useExtents )
+    {
+      inode.setFlags( inode.getFlags() | INode.EXTENTS );
+    }
+  }
+
+  public int getNumberOfMapBlocksUsed()
+  {
+    return numberOfMapBlocksUsed;
+  }
+
+  // Add the next length data blocks of the file, which are consecutive on disk from start
+  public void addRun( int start, int length ) throws IOException
+  {
+    if( length <= 0 ) return;
+
+    if( useExtents )
+    {
+      if( pendingExtent != null && pendingExtent.getStart() + pendingExtent.getLength() == start )
+      {
+        pendingExtent = new Extent( pendingExtent.getStart(), pendingExtent.getLength() + length );
+        return;
+      }
+      addExtent( pendingExtent );
+      pendingExtent = new Extent( start, length );
+      return;
+    }
+
+    for( int i = 0; i < length; i++ )
+    {
+      addDataBlock( start + i );
+    }
+  }
+
+  // Write out the map blocks that are not yet full
+  public void finish() throws IOException
+  {
+    if( useExtents )
+    {
+      addExtent( pendingExtent );
+      pendingExtent = null;
+      if( extentBlock != null )
+      {
+        writeMapBlock( extentBlockPointer, extentBlock );
+        extentBlock = null;
+      }
+      return;
+    }
+
+    closeIndirectBlocks( level );
+  }
+
+  private void addDataBlock( int dataPointer ) throws IOException
+  {
+    long index = numberOfDataBlocks++;
+    if( index < INode.NUMBER_OF_DIRECT_POINTERS )
+    {
+      inode.addDirectPointer( dataPointer );
+      return;
+    }
+
+    // Find the level the block goes in, and where it goes within that level
+    index -= INode.NUMBER_OF_DIRECT_POINTERS;
+    long blocksPerLevel = IndirectPointerBlock.POINTERS_PER_BLOCK;
+    int  blockLevel     = 1;
+    while( index >= blocksPerLevel )
+    {
+      index          -= blocksPerLevel;
+      blocksPerLevel *= IndirectPointerBlock.POINTERS_PER_BLOCK;
+      blockLevel++;
+    }
+    assert blockLevel <= 3;
+
+    // Moving on to a new level means the last one is full
+    if( blockLevel != level )
+    {
+      closeIndirectBlocks( level );
+      level = blockLevel;
+    }
+
+    // Start a new indirect block at each height where the last one is full, working down from the top of the level
+    for( int height = level; height >= 1; height-- )
+    {
+      if( index % ( blocksPerLevel / pow( IndirectPointerBlock.POINTERS_PER_BLOCK, level - height ) ) != 0 ) continue;
+
+      if( indirectBlocks[ height ] != null )
+      {
+        writeMapBlock( indirectBlockPointers[ height ], indirectBlocks[ height ] );
+      }
+      int pointer = nextMapBlock();
+      indirectBlocks[ height ]        = new IndirectPointerBlock( addressOfFirstDataBlock );
+      indirectBlockPointers[ height ] = pointer;
+
+      if( height < level )
+      {
+        indirectBlocks[ height + 1 ].addIndirectPointer( pointer );
+      }
+      else if( level == 1 )
+      {
+        inode.setIndirectPointer( pointer );
+      }
+      else if( level == 2 )
+      {
+        inode.setDoubleIndirectPointer( pointer );
+      }
+      else
+      {
+        inode.setTripleIndirectPointer( pointer );
+      }
+    }
+    indirectBlocks[1].addIndirectPointer( dataPointer );
+  }
+
+  // Write out the open indirect blocks of a level, the lowest first
+  private void closeIndirectBlocks( int topHeight ) throws IOException
+  {
+    for( int height = 1; height <= topHeight; height++ )
+    {
+      if( indirectBlocks[ height ] == null ) continue;
+      writeMapBlock( indirectBlockPointers[ height ], indirectBlocks[ height ] );
+      indirectBlocks[ height ] = null;
+    }
+  }
+
+  private void addExtent( Extent extent ) throws IOException
+  {
+    if( extent == null ) return;
+    if( extentBlock == null && inode.addExtent( extent ) ) return;
+
+    if( extentBlock == null || extentBlock.isFull() )
+    {
+      int pointer = nextMapBlock();
+      if( extentBlock == null )
+      {
+        inode.setExtentBlockPointer( pointer );
+      }
+      else
+      {
+        extentBlock.setNextExtentBlock( pointer );
+        writeMapBlock( extentBlockPointer, extentBlock );
+      }
+      extentBlock        = new ExtentBlock();
+      extentBlockPointer = pointer;
+    }
+    extentBlock.addExtent( extent );
+  }
+
+  // Take the next reserved map block
+  private int nextMapBlock()
+  {
+    while( mapBlockRun == null || mapBlockRunUsed >= mapBlockRun.getLength() )
+    {
+      mapBlockRun     = mapBlockRuns.next();
+      mapBlockRunUsed = 0;
+    }
+    numberOfMapBlocksUsed++;
+    return mapBlockRun.getStart() + mapBlockRunUsed++;
+  }
+
+  // A finished block goes straight to disk; anything the cache held for it is out of date
+  private void writeMapBlock( int pointer, DataBlock block ) throws IOException
+  {
+    WriteDataBlock.write( device, pointer, block );
+    blockCache.invalidate( pointer );
+  }
+
+  private static long pow( long base, int exponent )
+  {
+    long result = 1;
+    for( int i = 0; i < exponent; i++ )
+    {
+      result *= base;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,105 @@
+package edu.wcsu.wcsufs.Writers;
+
+import edu.wcsu.wcsufs.Devices.BlockDevice;
+import edu.wcsu.wcsufs.FSDataStructures.FSConstants;
+import edu.wcsu.wcsufs.FSDataStructures.INode;
+import edu.wcsu.wcsufs.FSDataStructures.SuperBlock;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Writes blank INodes to the part of the INode table that Format left uninitialized.
+// run() works through the table in the background after a mount, while ensureInitialized() lets the Shell
+// initialize a block immediately before it allocates an INode in it. The super block's high-water mark
+// only moves once the blocks below it have been written.
+public class INodeTableInitializer implements Runnable
+{
+  // Constants
+  // The number of INode blocks written at a time
+  public static final int BLOCKS_PER_STEP = 64;
+
+  // Member data
+  private final BlockDevice device;
+  private final SuperBlock  superBlock;
+  private final int         numberOfINodeBlocks;
+  private final ByteBuffer  blankINodes;
+
+  private volatile boolean stopped = false;
+
+  public INodeTableInitializer( BlockDevice device, SuperBlock superBlock, int numberOfINodeBlocks )
+  {
+    this.device              = device;
+    this.superBlock          = superBlock;
+    this.numberOfINodeBlocks = numberOfINodeBlocks;
+
+    // Make up a buffer of blank INodes
+    blankINodes = ByteBuffer.allocateDirect( BLOCKS_PER_STEP * FSConstants.BLOCK_SIZE );
+    INode blankINode = new INode( 0 );
+    while( blankINodes.hasRemaining() )
+    {
+      WriteINode.encode( blankINodes, blankINode, superBlock.getVersion() );
+    }
+  }
+
+  public synchronized boolean isInitialized( int INodeBlockNumber )
+  {
+    return superBlock.isINodeBlockInitialized( INodeBlockNumber );
+  }
+
+  public synchronized void ensureInitialized( int INodeBlockNumber ) throws IOException
+  {
+    while( !superBlock.isINodeBlockInitialized( INodeBlockNumber ) )
+    {
+      initializeNextBlocks();
+    }
+  }
+
+  @Override
+  public void run()
+  {
+    try
+    {
+      while( !stopped )
+      {
+        synchronized( this )
+        {
+          if( superBlock.isINodeTableInitialized() ) break;
+          initializeNextBlocks();
+        }
+
+        // Give the Shell a chance at the lock
+        Thread.yield();
+      }
+    }
+    catch( IOException ioe )
+    {
+      System.out.println( "Caught exception initializing the INode table: " + ioe );
+    }
+  }
+
+  public void stop()
+  {
+    stopped = true;
+  }
+
+  // Write out the next few uninitialized blocks, then record them in the super block.
+  // With block groups a step stops at the end of a group's INode blocks, since the next group's are elsewhere.
+  private void initializeNextBlocks() throws IOException
+  {
+    int firstBlock          = superBlock.getNumberOfInitializedINodeBlocks();
+    int INodeBlocksPerGroup = superBlock.getINodeBlocksPerGroup();
+    int numberOfBlocks      = Math.min( BLOCKS_PER_STEP, numberOfINodeBlocks - firstBlock );
+    numberOfBlocks          = Math.min( numberOfBlocks, INodeBlocksPerGroup - firstBlock % INodeBlocksPerGroup );
+
+    blankINodes.clear();
+    blankINodes.limit( numberOfBlocks * FSConstants.BLOCK_SIZE );
+    device.writeBlock( superBlock.getAddressOfINodeBlock( firstBlock ), blankINodes );
+
+    superBlock.setNumberOfInitializedINodeBlocks( firstBlock + numberOfBlocks );
+    if( firstBlock + numberOfBlocks >= numberOfINodeBlocks )
+    {
+      superBlock.setFlags( superBlock.getFlags() & ~SuperBlock.INODE_TABLE_UNINITIALIZED );
+    }
+    WriteSuperBlock.write( device, superBlock );
+  }
+}
@@ -1,19 +1,20 @@
 package edu.wcsu.wcsufs.Writers;
 
+import edu.wcsu.wcsufs.Devices.BlockDevice;
 import edu.wcsu.wcsufs.FSDataStructures.DataBlock;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 public class WriteDataBlock
 {
-  public static boolean write( RandomAccessFile file, DataBlock dataBlock ) throws IOException
+  public static boolean write( BlockDevice device, int blockNumber, DataBlock dataBlock ) throws IOException
   {
     // Get the data from the block and ...
     byte[] data = dataBlock.getData();
 
     // ... write it out.
-    file.write( data, 0, data.length );
+    device.writeBlock( blockNumber, ByteBuffer.wrap( data ) );
 
     // That's it
     return true;
@@ -1,83 +1,37 @@
 package edu.wcsu.wcsufs.Writers;
 
+import edu.wcsu.wcsufs.Devices.BlockDevice;
 import edu.wcsu.wcsufs.FSDataStructures.DirectoryDataBlock;
 import edu.wcsu.wcsufs.FSDataStructures.FSConstants;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
 
 public class WriteDirectoryBlock
 {
-  public static boolean write( RandomAccessFile file, DirectoryDataBlock dataBlock ) throws IOException
+  public static boolean write( BlockDevice device, int blockNumber, DirectoryDataBlock dataBlock ) throws IOException
   {
-    // Loop over the DirectoryEntries
-    ArrayList<DirectoryDataBlock.DirectoryEntry> directoryEntries = dataBlock.getDirectoryEntries();
-    int remainingBytes = FSConstants.BLOCK_SIZE;
+    // The entries are kept encoded in the block itself, so it can be written out as it is.
+    // Anything not covered by an entry is zero.
+    device.writeBlock( blockNumber, ByteBuffer.wrap( dataBlock.getData() ) );
+    dataBlock.clearDirty();
 
-    if( directoryEntries != null && directoryEntries.size() > 0 )
-    {
-      for( DirectoryDataBlock.DirectoryEntry directoryEntry : directoryEntries )
-      {
-        int    inodeNumber  = directoryEntry.getINodeNumber();
-        int    recordLength = directoryEntry.getRecordLength();
-        int    nameLength   = directoryEntry.getNameLength();
-        String name         = directoryEntry.getName();
-        int padding = recordLength -
-            (     DirectoryDataBlock.DirectoryEntry.INODE_NUMBER_BYTES
-                + DirectoryDataBlock.DirectoryEntry.RECORD_LENGTH_BYTES
-                + DirectoryDataBlock.DirectoryEntry.NAME_LENGTH_BYTES
-                + nameLength );
-
-        /*
-        System.out.println( "DirectoryDataBlock: writing out entry: " );
-        System.out.println( "\tname = " + name );
-        System.out.println( "\tINodeNumber = " + inodeNumber );
-        System.out.println( "\tnameLength = " + nameLength );
-        System.out.println( "\trecordLength = " + recordLength );
-        System.out.println( "\tpadding = " + padding );
-        */
-
-        // Write out the INode number
-        byte[] data = ByteBuffer.allocate(4).putInt( inodeNumber ).array();
-        file.write( data, 0,  DirectoryDataBlock.DirectoryEntry.INODE_NUMBER_BYTES );
-        //offset +=  DirectoryDataBlock.DirectoryEntry.INODE_NUMBER_BYTES;
-
-        // Write out the Record Length
-        data = ByteBuffer.allocate(2).putShort( (short)recordLength ).array();
-        file.write( data, 0,  DirectoryDataBlock.DirectoryEntry.RECORD_LENGTH_BYTES );
-        //offset +=  DirectoryDataBlock.DirectoryEntry.RECORD_LENGTH_BYTES;
-
-        // Write out the name length
-        data = ByteBuffer.allocate(2).putShort( (short)nameLength ).array();
-        file.write( data, 0,  DirectoryDataBlock.DirectoryEntry.NAME_LENGTH_BYTES );
-        //offset +=  DirectoryDataBlock.DirectoryEntry.NAME_LENGTH_BYTES;
-
-        // Write out the name
-        data = name.getBytes();
-        file.write( data, 0,  data.length);
-        //offset +=  data.length;
-
-        // Write out a terminating '\0' any additional padding needed.
-        data = new byte[ 1 + padding ];
-        data[0] = '\0';
-        file.write( data, 0, 1 + padding );
-        //offset += 1 + padding;
+    // That's it
+    return true;
+  }
 
-        // Decrease the remaining bytes by the length of this record.
-        remainingBytes -= recordLength;
-      }
-    }
+  // Write out only the sectors holding the records that have changed since the block was last written.
+  // Returns the number of bytes written.
+  public static int writeDirty( BlockDevice device, int blockNumber, DirectoryDataBlock dataBlock ) throws IOException
+  {
+    if( !dataBlock.isDirty() ) return 0;
 
-    // See if there are any remaining bytes
-    if( remainingBytes > 0 )
-    {
-      byte[] filler = new byte[ remainingBytes ];
-      file.write( filler, 0, remainingBytes );
-    }
+    int start  = ( dataBlock.getDirtyStart() / FSConstants.SECTOR_SIZE ) * FSConstants.SECTOR_SIZE;
+    int end    = ( ( dataBlock.getDirtyEnd() + FSConstants.SECTOR_SIZE - 1 ) / FSConstants.SECTOR_SIZE ) * FSConstants.SECTOR_SIZE;
+    long offset = (long)blockNumber * FSConstants.BLOCK_SIZE + start;
+    device.write( offset, ByteBuffer.wrap( dataBlock.getData(), start, end - start ) );
+    dataBlock.clearDirty();
 
-    // That's it
-    return true;
+    return end - start;
   }
 }
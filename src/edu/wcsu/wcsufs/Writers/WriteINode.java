@@ -1,57 +1,106 @@
 package edu.wcsu.wcsufs.Writers;
 
+import edu.wcsu.wcsufs.Devices.BlockDevice;
+import edu.wcsu.wcsufs.FSDataStructures.Extent;
+import edu.wcsu.wcsufs.FSDataStructures.FSConstants;
 import edu.wcsu.wcsufs.FSDataStructures.INode;
+import edu.wcsu.wcsufs.FSDataStructures.SuperBlock;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 
 public class WriteINode
 {
-  public static boolean write( RandomAccessFile file, INode inode ) throws IOException
+  public static boolean write( BlockDevice device, SuperBlock superBlock, INode inode ) throws IOException
   {
-    // Write out the file size.
-    byte[] data = ByteBuffer.allocate(4).putInt( inode.getFileSize() ).array();
-    file.write( data, 0, 4 );
-    //offset += 4;
-
-    // Write out the number of links
-    data = new byte[ 1 ];
-    data[0] = (byte)inode.getNumberOfLinks();
-    file.write( data, 0, 1 );
-    //offset += 1;
-
-    // Write out the file type
-    data[0] = (byte)inode.getType().getType();
-    file.write( data, 0, 1 );
-    //offset += 1;
-
-    // Write out the access mode
-    data[0] = (byte)inode.getAccessMode();
-    file.write( data, 0, 1 );
-    //offset += 1;
-
-    // Write out the spare byte
-    data[0] = 0;
-    file.write( data, 0, 1 );
-    //offset += 1;
-
-    // Write out the number of allocate blocks
-    data = ByteBuffer.allocate(4).putInt( inode.getAllocatedBlocks() ).array();
-    file.write( data, 0, 4 );
-
-    // Write out the direct pointers
-    for( int directPointer : inode.getDirectPointers() )
+    // Encode the whole INode and write it out with a single transfer
+    ByteBuffer data = ByteBuffer.allocate( superBlock.getBytesPerINode() );
+    encode( data, inode, superBlock.getVersion() );
+    data.flip();
+    device.write( superBlock.getOffsetOfINode( inode.getINodeNumber() ), data );
+
+    return true;
+  }
+
+  // Write a whole block of INodes. The buffer must hold at least one block and is reused by the caller.
+  public static boolean writeBlock( BlockDevice device, SuperBlock superBlock, int INodeBlockNumber, INode[] INodes, ByteBuffer buffer ) throws IOException
+  {
+    assert INodes.length == superBlock.getINodesPerBlock();
+
+    buffer.clear();
+    for( INode inode : INodes )
     {
-      data = ByteBuffer.allocate(4).putInt( directPointer ).array();
-      file.write( data, 0, 4 );
-      //offset += 4;
+      encode( buffer, inode, superBlock.getVersion() );
     }
-
-    // Write out the indirect pointer
-    data = ByteBuffer.allocate(4).putInt( inode.getIndirectPointer() ).array();
-    file.write( data, 0, 4 );
+    buffer.flip();
+    device.writeBlock( superBlock.getAddressOfINodeBlock( INodeBlockNumber ), buffer );
 
     return true;
   }
+
+  // Encode one INode in the given format version starting at the current position of the buffer
+  public static void encode( ByteBuffer data, INode inode, int version )
+  {
+    int start = data.position();
+
+    // The file size.
+    if( version >= SuperBlock.VERSION_2 )
+    {
+      data.putLong( inode.getFileSize() );
+    }
+    else
+    {
+      data.putInt( (int)inode.getFileSize() );
+    }
+
+    // The number of links, the file type and the access mode
+    data.put( (byte)inode.getNumberOfLinks() );
+    data.put( (byte)inode.getType().getType() );
+    data.put( (byte)inode.getAccessMode() );
+
+    // The flags of a version 2 INode; a version 1 INode has a spare byte here
+    data.put( (byte)( ( version >= SuperBlock.VERSION_2 ) ? inode.getFlags() : 0 ) );
+
+    // The number of allocate blocks
+    data.putInt( inode.getAllocatedBlocks() );
+
+    if( version >= SuperBlock.VERSION_2 && inode.isExtentMapped() )
+    {
+      // The extents, padded out with empty ones, and the extent block pointer
+      for( int i = 0; i < INode.NUMBER_OF_INLINE_EXTENTS; i++ )
+      {
+        Extent extent = ( i < inode.getExtents().size() ) ? inode.getExtents().get( i ) : new Extent( 0, 0 );
+        data.putInt( extent.getStart() );
+        data.putInt( extent.getLength() );
+      }
+      data.putInt( inode.getExtentBlockPointer() );
+    }
+    else
+    {
+      // The direct pointers
+      for( int directPointer : inode.getDirectPointers() )
+      {
+        data.putInt( directPointer );
+      }
+
+      // The indirect pointer
+      data.putInt( inode.getIndirectPointer() );
+
+      // A version 2 INode goes on with the double and triple indirect pointers
+      if( version >= SuperBlock.VERSION_2 )
+      {
+        data.putInt( inode.getDoubleIndirectPointer() );
+        data.putInt( inode.getTripleIndirectPointer() );
+      }
+    }
+
+    // The rest of a version 2 INode is spare
+    if( version >= SuperBlock.VERSION_2 )
+    {
+      while( data.position() < start + FSConstants.BYTES_PER_INODE_V2 )
+      {
+        data.put( (byte)0 );
+      }
+    }
+  }
 }
@@ -1,48 +1,92 @@
 package edu.wcsu.wcsufs.Writers;
 
+import edu.wcsu.wcsufs.Devices.BlockDevice;
 import edu.wcsu.wcsufs.FSDataStructures.FSConstants;
 import edu.wcsu.wcsufs.FSDataStructures.NodeMap;
+import edu.wcsu.wcsufs.FSDataStructures.NodeMapType;
+import edu.wcsu.wcsufs.FSDataStructures.SuperBlock;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.BitSet;
 
+// Each block group stores its own part of a NodeMap at the group's Node Map address; without block groups
+// the whole map is a single part.  The bytes of a part are in reverse order: the last byte holds the part's
+// first 8 bits, with the first as its lowest bit.  That makes each group of 8 bytes a big-endian word, with
+// the first word at the end.  A part that does not fit in one block carries on into the following blocks.
 public class WriteNodeMap
 {
-  public static boolean write( RandomAccessFile file, NodeMap nodeMap ) throws IOException
+  public static boolean write( BlockDevice device, SuperBlock superBlock, NodeMap nodeMap ) throws IOException
   {
-    BitSet map = nodeMap.getNodeMap();
+    // The map is written as whole 64 bit words
+    long[] words = nodeMap.getNodeMap().toLongArray();
+    int bitsPerGroup = getBitsPerGroup( superBlock, nodeMap );
+
+    for( int group = 0; group < superBlock.getNumberOfGroups(); group++ )
+    {
+      int firstWord          = group * bitsPerGroup / 64;
+      int numberOfGroupWords = getNumberOfGroupWords( nodeMap, bitsPerGroup, group );
+
+      // Write out the part, "zeroing out" any remaining bytes of its last block.
+      ByteBuffer blocks = ByteBuffer.allocate( NodeMap.getNumberOfBlocks( numberOfGroupWords * 64 ) * FSConstants.BLOCK_SIZE );
+      for( int i = 0; i < numberOfGroupWords && firstWord + i < words.length; i++ )
+      {
+        blocks.putLong( ( numberOfGroupWords - 1 - i ) * 8, words[ firstWord + i ] );
+      }
+      device.writeBlock( superBlock.getAddressOfNodeMap( nodeMap.getType(), group ), blocks );
+    }
+    nodeMap.clearDirty();
+
+    return true;
+  }
 
-    byte[] data = new byte[ map.size() / 8 ];
-    int remainingBytes = FSConstants.BLOCK_SIZE - data.length;
-    //System.out.println( "WriteNodeMap: data.length = " + data.length );
+  // Write out only the words changed since the map was last written, one write for each run of changed words
+  // within a group.  Returns the number of bytes written.
+  public static int writeDirty( BlockDevice device, SuperBlock superBlock, NodeMap nodeMap ) throws IOException
+  {
+    BitSet map = nodeMap.getNodeMap();
+    BitSet dirtyWords = nodeMap.getDirtyWords();
+    int bitsPerGroup = getBitsPerGroup( superBlock, nodeMap );
+    int numberOfWords = ( 64 + nodeMap.getNumberOfBits() - 1 ) / 64;
 
-    int byteNumber = data.length - 1;
-    int bitNumber  = 0;
-    for( int i = 0; i < map.size(); i++ )
+    int bytesWritten = 0;
+    int firstWord = dirtyWords.nextSetBit( 0 );
+    while( firstWord >= 0 && firstWord < numberOfWords )
     {
-      if( map.get( i ) )
+      // A run stops at the end of its group's part
+      int group              = firstWord * 64 / bitsPerGroup;
+      int firstGroupWord     = group * bitsPerGroup / 64;
+      int numberOfGroupWords = getNumberOfGroupWords( nodeMap, bitsPerGroup, group );
+      int endWord = Math.min( dirtyWords.nextClearBit( firstWord ), firstGroupWord + numberOfGroupWords );
+
+      // Words firstWord to endWord - 1 are stored backwards, so the run starts on disk with word endWord - 1
+      long[] words = map.get( firstWord * 64, endWord * 64 ).toLongArray();
+      ByteBuffer run = ByteBuffer.allocate( ( endWord - firstWord ) * 8 );
+      for( int i = 0; i < words.length; i++ )
       {
-        data[byteNumber] |= 1 << bitNumber;
+        run.putLong( ( endWord - firstWord - 1 - i ) * 8, words[i] );
       }
+      long offset = (long)superBlock.getAddressOfNodeMap( nodeMap.getType(), group ) * FSConstants.BLOCK_SIZE
+                  + ( firstGroupWord + numberOfGroupWords - endWord ) * 8L;
+      device.write( offset, run );
+      bytesWritten += ( endWord - firstWord ) * 8;
 
-      bitNumber = (bitNumber + 1) % 8;
-      if( (i + 1) % 8 == 0 ) byteNumber--;
+      firstWord = dirtyWords.nextSetBit( endWord );
     }
-    //byte[] data = nodeMap.getNodeMap().toByteArray();
-    /*
-    System.out.println( "For nodeMap: length = " + nodeMap.getNodeMap().length() + ", and size = " + nodeMap.getNodeMap().size() );
-    */
-    file.write( data, 0, data.length );
-    //for( int j = 0; j < data.length; j++ )
-    //{
-    //  System.out.format( "data[ %d ] = 0x%x\n", j, data[j] );
-    //}
-
-    // Now "zero out" any remaining bytes.
-    byte[] padBytes = new byte[remainingBytes];
-    file.write( padBytes, 0, remainingBytes );
+    nodeMap.clearDirty();
 
-    return true;
+    return bytesWritten;
+  }
+
+  private static int getBitsPerGroup( SuperBlock superBlock, NodeMap nodeMap )
+  {
+    return ( nodeMap.getType() == NodeMapType.INodeMap ) ? superBlock.getINodesPerGroup() : superBlock.getDataBlocksPerGroup();
+  }
+
+  // The number of words in a group's part; the last group may be smaller
+  private static int getNumberOfGroupWords( NodeMap nodeMap, int bitsPerGroup, int group )
+  {
+    int bitsInGroup = Math.min( bitsPerGroup, nodeMap.getNumberOfBits() - group * bitsPerGroup );
+    return ( 64 + bitsInGroup - 1 ) / 64;
   }
 }
@@ -1,57 +1,56 @@
 package edu.wcsu.wcsufs.Writers;
 
+import edu.wcsu.wcsufs.Devices.BlockDevice;
 import edu.wcsu.wcsufs.FSDataStructures.SuperBlock;
+import edu.wcsu.wcsufs.Readers.ReadSuperBlock;
 
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 
 public class WriteSuperBlock
 {
   // Member data
-  public static boolean write( RandomAccessFile file, SuperBlock superBlock ) throws IOException
+  public static boolean write( BlockDevice device, SuperBlock superBlock ) throws IOException
   {
     // Write out the fields of a super block.  This is always the first item in a file
-    boolean success = true;
+    ByteBuffer data = ByteBuffer.allocate( ReadSuperBlock.SUPER_BLOCK_BYTES );
 
     // The magic comes first
-    byte[] data = ByteBuffer.allocate(4).putInt( superBlock.getMagic() ).array();
-    file.write( data, 0, 4 );
+    data.putInt( superBlock.getMagic() );
 
+    // The number of INodes and Data Blocks
+    data.putInt( superBlock.getNumberOfINodes() );
+    data.putInt( superBlock.getNumberOfDataBlocks() );
 
-    // Write the number of INodes
-    data = ByteBuffer.allocate(4).putInt( superBlock.getNumberOfINodes() ).array();
-    file.write( data, 0, 4 );
+    // The addresses of the INode Map and the Data Block Map
+    data.putInt( superBlock.getAddressOfINodeMap() );
+    data.putInt( superBlock.getAddressOfDataBlockMap() );
 
+    // The addresses of the first INode and the first Data Block
+    data.putInt( superBlock.getAddressOfFirstInode() );
+    data.putInt( superBlock.getAddressOfFirstDataBlock() );
 
-    // Write the number of Data Blocks
-    data = ByteBuffer.allocate(4).putInt( superBlock.getNumberOfDataBlocks() ).array();
-    file.write( data, 0, 4 );
-    //offset += 4;
+    // The total number of blocks
+    data.putInt( superBlock.getTotalBlocks() );
 
-    // Write the address of the INode Map
-    data = ByteBuffer.allocate(4).putInt( superBlock.getAddressOfINodeMap() ).array();
-    file.write( data, 0, 4 );
-    //offset += 4;
+    // The flags and how much of the INode table has been initialized
+    data.putInt( superBlock.getFlags() );
+    data.putInt( superBlock.getNumberOfInitializedINodeBlocks() );
 
-    // Write the address of the Data Block Map
-    data = ByteBuffer.allocate(4).putInt( superBlock.getAddressOfDataBlockMap() ).array();
-    file.write( data, 0, 4 );
-    //offset += 4;
+    // The number of blocks in each Node Map
+    data.putInt( superBlock.getNumberOfINodeMapBlocks() );
+    data.putInt( superBlock.getNumberOfDataBlockMapBlocks() );
 
-    // Write the address of the first INode
-    data = ByteBuffer.allocate(4).putInt( superBlock.getAddressOfFirstInode() ).array();
-    file.write( data, 0, 4 );
-    //offset += 4;
+    // The shape of a block group
+    data.putInt( superBlock.getBlocksPerGroup() );
+    data.putInt( superBlock.getINodesPerGroup() );
+    data.putInt( superBlock.getDataBlocksPerGroup() );
 
-    // Write the address of the first Data Block
-    data = ByteBuffer.allocate(4).putInt( superBlock.getAddressOfFirstDataBlock() ).array();
-    file.write( data, 0, 4 );
-    //offset += 4;
+    // The version of the format
+    data.putInt( superBlock.getVersion() );
 
-    // Write the total number of blocks
-    data = ByteBuffer.allocate(4).putInt( superBlock.getTotalBlocks() ).array();
-    file.write( data, 0, 4 );
+    data.flip();
+    device.writeBlock( 0, data );
 
     return true;
   }